@@ -0,0 +1,25 @@
+package org.folio.rest.impl;
+
+import org.folio.rest.resource.interfaces.InitAPI;
+import org.folio.rest.utils.PatronGroupCache;
+import org.folio.rest.utils.UserCache;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+
+/**
+ * Run by RMB once when the verticle starts, for the set up that the API classes, which
+ * RMB creates for every request, must not repeat.
+ */
+public class InitAPIs implements InitAPI {
+
+  @Override
+  public void init(Vertx vertx, Context context, Handler<AsyncResult<Boolean>> resultHandler) {
+    UserCache.getInstance().listen(vertx);
+    PatronGroupCache.getInstance().listen(vertx);
+    resultHandler.handle(Future.succeededFuture(true));
+  }
+}
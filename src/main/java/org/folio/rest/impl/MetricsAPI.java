@@ -0,0 +1,23 @@
+package org.folio.rest.impl;
+
+import java.util.Map;
+
+import javax.ws.rs.core.Response;
+
+import org.folio.rest.jaxrs.resource.MetricsResource;
+import org.folio.rest.utils.Metrics;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+
+public class MetricsAPI implements MetricsResource {
+
+  @Override
+  public void getMetrics(Map<String, String> okapiHeaders,
+      Handler<AsyncResult<Response>> asyncResultHandler, Context vertxContext) throws Exception {
+    asyncResultHandler.handle(Future.succeededFuture(
+        GetMetricsResponse.withPlainOK(Metrics.getInstance().scrape())));
+  }
+}
@@ -1,5 +1,9 @@
 package org.folio.rest.impl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -8,13 +12,11 @@ import javax.ws.rs.core.Response;
 import org.folio.rest.RestVerticle;
 import org.folio.rest.annotations.Validate;
 import org.folio.rest.jaxrs.model.User;
+import org.folio.rest.jaxrs.model.UserdataCollection;
 import org.folio.rest.jaxrs.model.Usergroup;
+import org.folio.rest.jaxrs.model.UsergroupMoveResult;
 import org.folio.rest.jaxrs.model.Usergroups;
 import org.folio.rest.jaxrs.resource.GroupsResource;
-import org.folio.rest.jaxrs.resource.UsersResource.GetUsersResponse;
-import org.folio.rest.persist.PostgresClient;
-import org.folio.rest.persist.Criteria.Criteria;
-import org.folio.rest.persist.Criteria.Criterion;
 import org.folio.rest.persist.Criteria.Limit;
 import org.folio.rest.persist.Criteria.Offset;
 import org.folio.rest.persist.cql.CQLWrapper;
@@ -22,17 +24,31 @@ import org.folio.rest.tools.messages.MessageConsts;
 import org.folio.rest.tools.messages.Messages;
 import org.folio.rest.tools.utils.OutStream;
 import org.folio.rest.tools.utils.TenantTool;
+import org.folio.rest.utils.Bulkhead;
+import org.folio.rest.utils.CachingCQL2PgJSON;
+import org.folio.rest.utils.ETag;
+import org.folio.rest.utils.Metrics;
+import org.folio.rest.utils.PatronGroupCache;
+import org.folio.rest.utils.ReadReplica;
+import org.folio.rest.utils.ResponseFormat;
+import org.folio.rest.utils.SqlUtil;
+import org.folio.rest.utils.UserCache;
 import org.folio.rest.utils.ValidationHelper;
-import org.z3950.zing.cql.cql2pgjson.CQL2PgJSON;
 import org.z3950.zing.cql.cql2pgjson.FieldException;
+import org.z3950.zing.cql.cql2pgjson.QueryValidationException;
 
 import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
 import io.vertx.core.Context;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.sql.ResultSet;
+import io.vertx.ext.sql.UpdateResult;
 
 /**
  * @author shale
@@ -42,289 +58,530 @@ public class UserGroupAPI implements GroupsResource {
 
   public static final String       GROUP_TABLE           = "groups";
   public static final String       GROUP_USER_JOIN_TABLE = "groups_users";
-  public static final String       ID_FIELD_NAME         = "id";
+  public static final String       MEMBER_COUNT_TABLE    = "group_member_counts";
+  /** id, username and name of a user, the projection of GET /groups/{groupId}/users?brief=true */
+  private static final String       BRIEF_USER            = "jsonb_strip_nulls(jsonb_build_object("
+      + "'id', jsonb->'id', 'username', jsonb->'username', 'personal', CASE WHEN jsonb->'personal' IS NULL"
+      + " THEN NULL ELSE jsonb_build_object('lastName', jsonb->'personal'->'lastName',"
+      + " 'firstName', jsonb->'personal'->'firstName') END))::text";
 
   private static final String       LOCATION_PREFIX       = "/groups/";
   private static final Logger       log                   = LoggerFactory.getLogger(UserGroupAPI.class);
   private final Messages            messages              = Messages.getInstance();
 
-
-  public UserGroupAPI(Vertx vertx, String tenantId) {
-    PostgresClient.getInstance(vertx, tenantId).setIdField(ID_FIELD_NAME);
-  }
-
   @Validate
   @Override
-  public void getGroups(String query, int offset, int limit,
+  public void getGroups(String ifNoneMatch, String accept, TotalRecords totalRecords, String query, int offset,
+      int limit, String lang, Map<String, String> okapiHeaders,
+      Handler<AsyncResult<Response>> resultHandler, Context vertxContext) throws Exception {
+    ResponseFormat format = ResponseFormat.negotiate(accept);
+    Bulkhead.getInstance().execute(vertxContext, okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT), Bulkhead.Kind.SEARCH,
+        format.encoder("GET /groups",
+            Metrics.getInstance().request("GET /groups", okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT), resultHandler)),
+        asyncResultHandler -> findGroups(format.ifNoneMatch(ifNoneMatch), totalRecords, query, offset, limit, lang,
+            okapiHeaders, asyncResultHandler, vertxContext));
+  }
+
+  private void findGroups(String ifNoneMatch, TotalRecords totalRecords, String query, int offset, int limit,
       String lang, Map<String, String> okapiHeaders,
       Handler<AsyncResult<Response>> asyncResultHandler, Context vertxContext) throws Exception {
 
     /**
     * http://host:port/groups
     */
-    vertxContext.runOnContext(v -> {
-      try {
-        System.out.println("sending... getGroups");
-        String tenantId = TenantTool.calculateTenantId( okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT) );
-        CQLWrapper cql = getCQL(query,limit, offset);
-
-        PostgresClient.getInstance(vertxContext.owner(), tenantId).get(GROUP_TABLE, Usergroup.class,
-          new String[]{"*"}, cql, true, true,
-            reply -> {
-              try {
-                if(reply.succeeded()){
-                  Usergroups groups = new Usergroups();
-                  @SuppressWarnings("unchecked")
-                  List<Usergroup> groupList = (List<Usergroup>) reply.result()[0];
-                  groups.setUsergroups(groupList);
-                  groups.setTotalRecords((Integer)reply.result()[1]);
-                  asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(GetGroupsResponse.withJsonOK(
-                    groups)));
-                }
-                else{
-                  log.error(reply.cause().getMessage(), reply.cause());
-                  asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(GetGroupsResponse
-                    .withPlainBadRequest(reply.cause().getMessage())));
-                }
-              } catch (Exception e) {
-                log.error(e.getMessage(), e);
-                asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(GetGroupsResponse
-                  .withPlainInternalServerError(messages.getMessage(
-                    lang, MessageConsts.InternalServerError))));
-              }
-            });
+    String tenantId = TenantTool.calculateTenantId( okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT) );
+    Vertx vertx = vertxContext.owner();
+    CQLWrapper cql;
+    String where;
+    try {
+      cql = getCQL(query,limit, offset);
+      where = query == null ? "" : " WHERE " + CachingCQL2PgJSON.getInstance(GROUP_TABLE+".jsonb").cql2pgJson(query);
+    }
+    catch(QueryValidationException e){
+      log.error(e.getLocalizedMessage(), e);
+      asyncResultHandler.handle(Future.succeededFuture(GetGroupsResponse.withPlainBadRequest(
+              "CQL Parsing Error for '" + query + "': " + e.getLocalizedMessage())));
+      return;
+    }
+    /* a tenant has a few dozen groups, so an estimate would not be cheaper than the exact count */
+    boolean count = totalRecords != TotalRecords.none;
+    boolean replica = ReadReplica.use(okapiHeaders);
+
+    /* the tag is read before the groups: if a group changes in between, the response
+       has the old tag and the next conditional request gets the change */
+    Future<String> etag = Future.future();
+    getGroupsTag(vertx, tenantId, replica, where, offset, limit, count,
+        Metrics.getInstance().timed(Metrics.Phase.DB, "GET /groups", etag.completer()));
+    Future<Object[]> page = Future.future();
+    etag.<Response>compose(tag -> {
+      if(ETag.matches(ifNoneMatch, tag)){
+        return Future.succeededFuture(GetGroupsResponse.withNotModified(ETag.quote(tag)));
       }
-      catch(FieldException fe){
-        log.error(fe.getLocalizedMessage(), fe);
-        asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withPlainBadRequest(
-                "CQL Parsing Error for '" + query + "': " + fe.getLocalizedMessage())));
+      try {
+        selectGroups(vertx, tenantId, replica, cql, where, offset, limit, count,
+            Metrics.getInstance().timed(Metrics.Phase.DB, "GET /groups", page.completer()));
+      } catch (Exception e) {
+        page.fail(e);
       }
-      catch (Exception e) {
-        log.error(e.getMessage(), e);
-        asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(GetGroupsResponse
-          .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError))));
+      return page.compose(result -> {
+        Usergroups groups = new Usergroups();
+        @SuppressWarnings("unchecked")
+        List<Usergroup> groupList = (List<Usergroup>) result[0];
+        groups.setUsergroups(groupList);
+        if(count){
+          groups.setTotalRecords((Integer)result[1]);
+        }
+        Future<Void> counted = Future.future();
+        setMemberCounts(vertx, tenantId, replica, groupList, counted.completer());
+        return counted.map(v -> GetGroupsResponse.withJsonOK(ETag.quote(tag), groups));
+      });
+    }).otherwise(e -> {
+      log.error(e.getMessage(), e);
+      if(e instanceof QueryValidationException){
+        return GetGroupsResponse.withPlainBadRequest(
+            "CQL Parsing Error for '" + query + "': " + e.getLocalizedMessage());
       }
-    });
-
+      /* the database error is logged, not sent: it may show the SQL and the schema */
+      return GetGroupsResponse.withPlainInternalServerError(
+          messages.getMessage(lang, MessageConsts.InternalServerError));
+    }).setHandler(asyncResultHandler);
   }
 
   @Validate
   @Override
   public void postGroups(String lang, Usergroup entity, Map<String, String> okapiHeaders,
-      Handler<AsyncResult<Response>> asyncResultHandler, Context vertxContext) throws Exception {
+      Handler<AsyncResult<Response>> resultHandler, Context vertxContext) throws Exception {
+    Handler<AsyncResult<Response>> asyncResultHandler = Metrics.getInstance().request(
+        "POST /groups", okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT), resultHandler);
 
-    vertxContext.runOnContext(v -> {
-      try {
-        System.out.println("sending... postGroups");
-        String tenantId = TenantTool.calculateTenantId( okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT) );
-        PostgresClient.getInstance(vertxContext.owner(), tenantId).save(
-          GROUP_TABLE,
-          entity,
-          reply -> {
-            try {
-              if(reply.succeeded()){
-                Object ret = reply.result();
-                entity.setId((String) ret);
-                OutStream stream = new OutStream();
-                stream.setData(entity);
-                asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(PostGroupsResponse.withJsonCreated(
-                  LOCATION_PREFIX + ret, stream)));
+    try {
+      String tenantId = TenantTool.calculateTenantId( okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT) );
+      /* derived from the users table, never stored */
+      entity.setMemberCount(null);
+      long start = System.nanoTime();
+      SqlUtil.client(vertxContext.owner(), tenantId).save(
+        GROUP_TABLE,
+        entity,
+        reply -> {
+          Metrics.getInstance().time(Metrics.Phase.DB, "POST /groups", start);
+          try {
+            if(reply.succeeded()){
+              PatronGroupCache.getInstance().invalidate(vertxContext.owner(), tenantId);
+              Object ret = reply.result();
+              entity.setId((String) ret);
+              OutStream stream = new OutStream();
+              stream.setData(entity);
+              asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(PostGroupsResponse.withJsonCreated(
+                LOCATION_PREFIX + ret, stream)));
+            }
+            else{
+              log.error(reply.cause().getMessage(), reply.cause());
+              if(isDuplicate(reply.cause().getMessage())){
+                asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(PostGroupsResponse
+                  .withJsonUnprocessableEntity(ValidationHelper.createValidationErrorMessage(
+                    "group", entity.getGroup(), "Group exists"))));
               }
               else{
-                log.error(reply.cause().getMessage(), reply.cause());
-                if(isDuplicate(reply.cause().getMessage())){
-                  asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(PostGroupsResponse
-                    .withJsonUnprocessableEntity(ValidationHelper.createValidationErrorMessage(
-                      "group", entity.getGroup(), "Group exists"))));
-                }
-                else{
-                  asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(PostGroupsResponse
-                    .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError))));
-                }
+                asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(PostGroupsResponse
+                  .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError))));
               }
-            } catch (Exception e) {
-              log.error(e.getMessage(), e);
-              asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(PostGroupsResponse
-                .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError))));
             }
-          });
-      } catch (Exception e) {
-        log.error(e.getMessage(), e);
-        asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(PostGroupsResponse
-          .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError))));
-      }
-    });
-
+          } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(PostGroupsResponse
+              .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError))));
+          }
+        });
+    } catch (Exception e) {
+      log.error(e.getMessage(), e);
+      asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(PostGroupsResponse
+        .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError))));
+    }
   }
 
   @Validate
   @Override
-  public void getGroupsByGroupId(String groupId, String lang, Map<String, String> okapiHeaders,
+  public void getGroupsByGroupId(String groupId, String ifNoneMatch, String lang, Map<String, String> okapiHeaders,
+      Handler<AsyncResult<Response>> resultHandler, Context vertxContext) throws Exception {
+    Bulkhead.getInstance().execute(vertxContext, okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT), Bulkhead.Kind.LOOKUP,
+        Metrics.getInstance().request("GET /groups/{groupId}", okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT), resultHandler),
+        asyncResultHandler -> findGroup(groupId, ifNoneMatch, lang, okapiHeaders, asyncResultHandler,
+            vertxContext));
+  }
+
+  private void findGroup(String groupId, String ifNoneMatch, String lang, Map<String, String> okapiHeaders,
       Handler<AsyncResult<Response>> asyncResultHandler, Context vertxContext) throws Exception {
 
-    vertxContext.runOnContext(v -> {
-      try {
-        System.out.println("sending... getGroupsByGroupId");
-        String tenantId = TenantTool.calculateTenantId( okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT) );
-
-        Criterion c = new Criterion(
-          new Criteria().addField(ID_FIELD_NAME).setJSONB(false).setOperation("=").setValue("'"+groupId+"'"));
-
-        PostgresClient.getInstance(vertxContext.owner(), tenantId).get(GROUP_TABLE, Usergroup.class, c, true,
-            reply -> {
-              try {
-                if(reply.succeeded()){
-                  @SuppressWarnings("unchecked")
-                  List<Usergroup> userGroup = (List<Usergroup>) reply.result()[0];
-                  if(userGroup.isEmpty()){
-                    asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(GetGroupsByGroupIdResponse
-                      .withPlainNotFound(groupId)));
-                  }
-                  else{
-                    asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(GetGroupsByGroupIdResponse
-                      .withJsonOK(userGroup.get(0))));
-                  }
-                }
-                else{
-                  log.error(reply.cause().getMessage(), reply.cause());
-                  if(isInvalidUUID(reply.cause().getMessage())){
-                    asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(GetGroupsByGroupIdResponse
-                      .withPlainNotFound(groupId)));
-                  }
-                  else{
-                    asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(GetGroupsByGroupIdResponse
-                      .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError))));
-                  }
-                }
-              } catch (Exception e) {
-                log.error(e.getMessage(), e);
-                asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(GetGroupsByGroupIdResponse
-                  .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError))));
-              }
-        });
-      } catch (Exception e) {
-        log.error(e.getMessage(), e);
-        asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(GetGroupsByGroupIdResponse
-          .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError))));
+    String tenantId = TenantTool.calculateTenantId( okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT) );
+
+    /* the ETag hashes the stored JSON and the member count, the JSON is only
+       sent by the database if the client does not have it */
+    String sql = "SELECT tag, CASE WHEN tag = ANY(?::text[]) THEN NULL ELSE jsonb END, member_count, id FROM"
+        + " (SELECT g.id::text AS id, g.jsonb::text AS jsonb, coalesce(c.member_count, 0) AS member_count,"
+        + " md5(g.jsonb::text || ':' || coalesce(c.member_count, 0)) AS tag"
+        + " FROM " + SqlUtil.table(tenantId, GROUP_TABLE) + " g"
+        + " LEFT JOIN " + SqlUtil.table(tenantId, MEMBER_COUNT_TABLE) + " c ON c.group_id = g.id::text"
+        + " WHERE g.id = ?::uuid) AS r";
+    JsonArray params = new JsonArray().add(SqlUtil.textArray(ETag.parse(ifNoneMatch))).add(groupId);
+    Future<ResultSet> found = Future.future();
+    SqlUtil.query(vertxContext.owner(), tenantId, ReadReplica.use(okapiHeaders), sql, params,
+        Metrics.getInstance().timed(Metrics.Phase.DB, "GET /groups/{groupId}", found.completer()));
+    found.<Response>map(result -> {
+      List<JsonArray> rows = result.getResults();
+      if(rows.isEmpty()){
+        return GetGroupsByGroupIdResponse.withPlainNotFound(groupId);
       }
-    });
+      String tag = rows.get(0).getString(0);
+      if(ETag.matches(ifNoneMatch, tag)){
+        return GetGroupsByGroupIdResponse.withNotModified(ETag.quote(tag));
+      }
+      Usergroup group = Json.decodeValue(rows.get(0).getString(1), Usergroup.class)
+          .withId(rows.get(0).getString(3)).withMemberCount(rows.get(0).getInteger(2));
+      return GetGroupsByGroupIdResponse.withJsonOK(ETag.quote(tag), group);
+    }).otherwise(e -> {
+      log.error(e.getMessage(), e);
+      if(isInvalidUUID(e.getMessage())){
+        return GetGroupsByGroupIdResponse.withPlainNotFound(groupId);
+      }
+      return GetGroupsByGroupIdResponse
+        .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError));
+    }).setHandler(asyncResultHandler);
   }
 
   @Validate
   @Override
   public void deleteGroupsByGroupId(String groupId, String lang, Map<String, String> okapiHeaders,
-      Handler<AsyncResult<Response>> asyncResultHandler, Context vertxContext) throws Exception {
+      Handler<AsyncResult<Response>> resultHandler, Context vertxContext) throws Exception {
+    Handler<AsyncResult<Response>> asyncResultHandler = Metrics.getInstance().request(
+        "DELETE /groups/{groupId}", okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT), resultHandler);
 
-    vertxContext.runOnContext(v -> {
-      System.out.println("sending... deleteGroupsByGroupId");
-      String tenantId = TenantTool.calculateTenantId( okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT) );
+    String tenantId = TenantTool.calculateTenantId( okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT) );
+    Vertx vertx = vertxContext.owner();
+    /* the member count is kept up to date by a trigger on the users table */
+    String sql = "SELECT member_count FROM " + SqlUtil.table(tenantId, MEMBER_COUNT_TABLE)
+        + " WHERE group_id = ?";
+    Future<ResultSet> counted = Future.future();
+    SqlUtil.query(vertx, tenantId, sql, new JsonArray().add(groupId.toLowerCase()),
+        Metrics.getInstance().timed(Metrics.Phase.DB, "DELETE /groups/{groupId}", counted.completer()));
+    counted.<Response>compose(count -> {
+      List<JsonArray> rows = count.getResults();
+      int members = rows.isEmpty() ? 0 : rows.get(0).getInteger(0);
+      if(members > 0){
+        log.error("Can not delete group, "+ groupId + ". " + members  + " users associated with it");
+        return Future.succeededFuture(DeleteGroupsByGroupIdResponse
+          .withPlainBadRequest("Can not delete group, " + members  + " users associated with it"));
+      }
+      log.info("Deleting empty group, "+ groupId);
+      Future<UpdateResult> deleted = Future.future();
       try {
-        User u = new User();
-        u.setPatronGroup(groupId);
-        PostgresClient.getInstance(vertxContext.owner(), tenantId).get(UsersAPI.TABLE_NAME_USER, u, true, false,
-          replyHandler -> {
-          if(replyHandler.succeeded()){
-            List<User> userList = (List<User>) replyHandler.result()[0];
-            if(userList.size() > 0){
-              log.error("Can not delete group, "+ groupId + ". " + userList.size()  + " users associated with it");
-              asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(DeleteGroupsByGroupIdResponse
-                .withPlainBadRequest("Can not delete group, " + userList.size()  + " users associated with it")));
-              return;
-            }
-            else{
-              log.info("Deleting empty group, "+ groupId);
-            }
-            try {
-              PostgresClient.getInstance(vertxContext.owner(), tenantId).delete(GROUP_TABLE, groupId,
-                reply -> {
-                  try {
-                    if(reply.succeeded()){
-                      if(reply.result().getUpdated() == 1){
-                        asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(DeleteGroupsByGroupIdResponse
-                          .withNoContent()));
-                      }
-                      else{
-                        log.error(messages.getMessage(lang, MessageConsts.DeletedCountError, 1, reply.result().getUpdated()));
-                        asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(DeleteGroupsByGroupIdResponse
-                          .withPlainNotFound(messages.getMessage(lang, MessageConsts.DeletedCountError,1 , reply.result().getUpdated()))));
-                      }
-                    }
-                    else{
-                      log.error(reply.cause().getMessage(), reply.cause());
-                      asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(DeleteGroupsByGroupIdResponse
-                        .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError))));
-                    }
-                  } catch (Exception e) {
-                    log.error(e.getMessage(), e);
-                    asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(DeleteGroupsByGroupIdResponse
-                      .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError))));
-                  }
-                });
-            } catch (Exception e) {
-              log.error(e.getMessage(), e);
-              asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(DeleteGroupsByGroupIdResponse
-                .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError))));
-            }
-          }
-          else{
-            log.error(replyHandler.cause().getMessage(), replyHandler.cause());
-            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(DeleteGroupsByGroupIdResponse
-              .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError))));
-          }
-        });
+        SqlUtil.client(vertx, tenantId).delete(GROUP_TABLE, groupId,
+            Metrics.getInstance().timed(Metrics.Phase.DB, "DELETE /groups/{groupId}", deleted.completer()));
       } catch (Exception e) {
-        log.error(e.getMessage(), e);
-        asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(DeleteGroupsByGroupIdResponse
-          .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError))));
+        deleted.fail(e);
       }
-    });
+      return deleted.map(reply -> {
+        PatronGroupCache.getInstance().invalidate(vertx, tenantId);
+        if(reply.getUpdated() == 1){
+          return DeleteGroupsByGroupIdResponse.withNoContent();
+        }
+        log.error(messages.getMessage(lang, MessageConsts.DeletedCountError, 1, reply.getUpdated()));
+        return DeleteGroupsByGroupIdResponse
+          .withPlainNotFound(messages.getMessage(lang, MessageConsts.DeletedCountError,1 , reply.getUpdated()));
+      });
+    }).otherwise(e -> {
+      log.error(e.getMessage(), e);
+      return DeleteGroupsByGroupIdResponse
+        .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError));
+    }).setHandler(asyncResultHandler);
   }
 
   @Validate
   @Override
   public void putGroupsByGroupId(String groupId, String lang, Usergroup entity,
-      Map<String, String> okapiHeaders, Handler<AsyncResult<Response>> asyncResultHandler,
+      Map<String, String> okapiHeaders, Handler<AsyncResult<Response>> resultHandler,
       Context vertxContext) throws Exception {
+    Handler<AsyncResult<Response>> asyncResultHandler = Metrics.getInstance().request(
+        "PUT /groups/{groupId}", okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT), resultHandler);
 
-    vertxContext.runOnContext(v -> {
-      System.out.println("sending... putGroupsByGroupId");
-      String tenantId = TenantTool.calculateTenantId( okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT) );
+    String tenantId = TenantTool.calculateTenantId( okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT) );
+    /* derived from the users table, never stored */
+    entity.setMemberCount(null);
+    Future<UpdateResult> updated = Future.future();
+    try {
+      SqlUtil.client(vertxContext.owner(), tenantId).update(GROUP_TABLE, entity, groupId,
+          Metrics.getInstance().timed(Metrics.Phase.DB, "PUT /groups/{groupId}", updated.completer()));
+    } catch (Exception e) {
+      updated.fail(e);
+    }
+    updated.<Response>map(reply -> {
+      PatronGroupCache.getInstance().invalidate(vertxContext.owner(), tenantId);
+      if(reply.getUpdated() == 0){
+        return PutGroupsByGroupIdResponse
+          .withPlainNotFound(messages.getMessage(lang, MessageConsts.NoRecordsUpdated));
+      }
+      return PutGroupsByGroupIdResponse.withNoContent();
+    }).otherwise(e -> {
+      log.error(e.getMessage(), e);
+      return PutGroupsByGroupIdResponse
+        .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError));
+    }).setHandler(asyncResultHandler);
+  }
+
+  @Validate
+  @Override
+  public void getGroupsByGroupIdUsers(String groupId, String after, int limit, boolean brief,
+      String lang, Map<String, String> okapiHeaders,
+      Handler<AsyncResult<Response>> resultHandler, Context vertxContext) throws Exception {
+    Bulkhead.getInstance().execute(vertxContext, okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT), Bulkhead.Kind.SEARCH,
+        Metrics.getInstance().request("GET /groups/{groupId}/users", okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT), resultHandler),
+        asyncResultHandler -> findGroupMembers(groupId, after, limit, brief, lang, okapiHeaders,
+            asyncResultHandler, vertxContext));
+  }
+
+  private void findGroupMembers(String groupId, String after, int limit, boolean brief,
+      String lang, Map<String, String> okapiHeaders,
+      Handler<AsyncResult<Response>> asyncResultHandler, Context vertxContext) throws Exception {
+
+    String tenantId = TenantTool.calculateTenantId( okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT) );
+    Vertx vertx = vertxContext.owner();
+    String group = groupId.toLowerCase();
+    /* users_patrongroup_id_idx serves both the condition and the order */
+    JsonArray params = new JsonArray().add(group);
+    StringBuilder sql = new StringBuilder("SELECT ").append(brief ? BRIEF_USER : "jsonb::text")
+        .append(" FROM ").append(SqlUtil.table(tenantId, UsersAPI.TABLE_NAME_USER))
+        .append(" WHERE lower(jsonb->>'patronGroup') = ?");
+    if(after != null){
+      sql.append(" AND jsonb->>'id' > ?");
+      params.add(after);
+    }
+    sql.append(" ORDER BY jsonb->>'id' LIMIT ").append(limit);
+
+    Future<Boolean> exists = Future.future();
+    PatronGroupCache.getInstance().exists(vertx, tenantId, groupId, exists.completer());
+    exists.<Response>compose(found -> {
+      if(!found){
+        return Future.succeededFuture(GetGroupsByGroupIdUsersResponse.withPlainNotFound("Group not found"));
+      }
+      Future<CompositeFuture> both = Future.future();
+      Handler<AsyncResult<CompositeFuture>> timed =
+          Metrics.getInstance().timed(Metrics.Phase.DB, "GET /groups/{groupId}/users", both.completer());
+      Future<ResultSet> page = Future.future();
+      Future<ResultSet> count = Future.future();
+      SqlUtil.query(vertx, tenantId, sql.toString(), params, page.completer());
+      SqlUtil.query(vertx, tenantId, "SELECT member_count FROM " + SqlUtil.table(tenantId, MEMBER_COUNT_TABLE)
+          + " WHERE group_id = ?", new JsonArray().add(group), count.completer());
+      CompositeFuture.all(page, count).setHandler(timed);
+      return both.map(v -> {
+        long decodeStart = System.nanoTime();
+        List<JsonArray> rows = page.result().getResults();
+        List<User> users = new ArrayList<>(rows.size());
+        for(JsonArray row : rows){
+          users.add(Json.decodeValue(row.getString(0), User.class));
+        }
+        Metrics.getInstance().time(Metrics.Phase.SERIALIZATION, "GET /groups/{groupId}/users", decodeStart);
+        List<JsonArray> counts = count.result().getResults();
+        UserdataCollection collection = new UserdataCollection();
+        collection.setUsers(users);
+        collection.setTotalRecords(counts.isEmpty() ? 0 : counts.get(0).getInteger(0));
+        if(rows.size() == limit){
+          collection.setNext(users.get(users.size() - 1).getId());
+        }
+        return GetGroupsByGroupIdUsersResponse.withJsonOK(collection);
+      });
+    }).otherwise(e -> {
+      log.error(e.getMessage(), e);
+      return GetGroupsByGroupIdUsersResponse
+        .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError));
+    }).setHandler(asyncResultHandler);
+  }
+
+  @Validate
+  @Override
+  public void postGroupsByGroupIdUsersMove(String groupId, String to, String query, String lang,
+      Map<String, String> okapiHeaders, Handler<AsyncResult<Response>> resultHandler,
+      Context vertxContext) throws Exception {
+    Handler<AsyncResult<Response>> asyncResultHandler = Metrics.getInstance().request(
+        "POST /groups/{groupId}/users/move", okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT), resultHandler);
+
+    String source = groupId.toLowerCase();
+    String target = to.toLowerCase();
+    if(source.equals(target)){
+      asyncResultHandler.handle(Future.succeededFuture(PostGroupsByGroupIdUsersMoveResponse
+        .withPlainBadRequest("The users are already in group " + to)));
+      return;
+    }
+    StringBuilder where = new StringBuilder("lower(jsonb->>'patronGroup') = ").append(SqlUtil.literal(source));
+    if(query != null){
+      if(CachingCQL2PgJSON.isSorted(query)){
+        asyncResultHandler.handle(Future.succeededFuture(PostGroupsByGroupIdUsersMoveResponse
+          .withPlainBadRequest("A move is not sorted, sortby is not supported")));
+        return;
+      }
       try {
-        PostgresClient.getInstance(vertxContext.owner(), tenantId).update(
-          GROUP_TABLE, entity, groupId,
-          reply -> {
-            try {
-              if(reply.succeeded()){
-                if(reply.result().getUpdated() == 0){
-                  asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(PutGroupsByGroupIdResponse
-                    .withPlainNotFound(messages.getMessage(lang, MessageConsts.NoRecordsUpdated))));
-                }
-                else{
-                  asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(PutGroupsByGroupIdResponse
-                    .withNoContent()));
-                }
-              }
-              else{
-                log.error(reply.cause().getMessage());
-                asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(PutGroupsByGroupIdResponse
-                  .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError))));
-              }
-            } catch (Exception e) {
-              log.error(e.getMessage(), e);
-              asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(PutGroupsByGroupIdResponse
-                .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError))));
-            }
-          });
-      } catch (Exception e) {
-        log.error(e.getMessage(), e);
-        asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(PutGroupsByGroupIdResponse
+        where.append(" AND (").append(CachingCQL2PgJSON.getInstance(UsersAPI.TABLE_NAME_USER+".jsonb")
+            .cql2pgJson(query)).append(')');
+      } catch(QueryValidationException e){
+        log.debug("BAD CQL " + e.getLocalizedMessage());
+        asyncResultHandler.handle(Future.succeededFuture(PostGroupsByGroupIdUsersMoveResponse
+          .withPlainBadRequest("CQL Parsing Error for '" + query + "': " + e.getLocalizedMessage())));
+        return;
+      }
+    }
+    String tenantId = TenantTool.calculateTenantId( okapiHeaders.get(RestVerticle.OKAPI_HEADER_TENANT) );
+    Vertx vertx = vertxContext.owner();
+    /* both groups with one lookup, instead of a getPG for every moved user */
+    PatronGroupCache.getInstance().existing(vertx, tenantId, new HashSet<>(Arrays.asList(source, target)), found -> {
+      if(found.failed()){
+        log.error(found.cause().getMessage(), found.cause());
+        asyncResultHandler.handle(Future.succeededFuture(PostGroupsByGroupIdUsersMoveResponse
           .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError))));
+        return;
+      }
+      if(!found.result().contains(source)){
+        asyncResultHandler.handle(Future.succeededFuture(PostGroupsByGroupIdUsersMoveResponse
+          .withPlainNotFound("Group not found")));
+        return;
+      }
+      if(!found.result().contains(target)){
+        asyncResultHandler.handle(Future.succeededFuture(PostGroupsByGroupIdUsersMoveResponse
+          .withPlainBadRequest("Group not found: " + to)));
+        return;
+      }
+      /* the triggers on the users table move the member counts, bump the versions of the
+         users and record the users in the change feed */
+      String sql = "UPDATE " + SqlUtil.table(tenantId, UsersAPI.TABLE_NAME_USER)
+          + " SET jsonb = jsonb_set(jsonb, '{patronGroup}', to_jsonb(" + SqlUtil.literal(target) + "::text))"
+          + " WHERE " + where;
+      long start = System.nanoTime();
+      SqlUtil.update(vertx, tenantId, sql, reply -> {
+        Metrics.getInstance().time(Metrics.Phase.DB, "POST /groups/{groupId}/users/move", start);
+        if(reply.failed()){
+          log.error(reply.cause().getMessage(), reply.cause());
+          asyncResultHandler.handle(Future.succeededFuture(PostGroupsByGroupIdUsersMoveResponse
+            .withPlainInternalServerError(messages.getMessage(lang, MessageConsts.InternalServerError))));
+          return;
+        }
+        int moved = reply.result().getUpdated();
+        if(moved > 0){
+          UserCache.getInstance().invalidate(vertx, tenantId, null);
+        }
+        log.info("Moved " + moved + " users from group " + groupId + " to group " + to);
+        asyncResultHandler.handle(Future.succeededFuture(PostGroupsByGroupIdUsersMoveResponse
+          .withJsonOK(new UsergroupMoveResult().withMoved(moved))));
+      });
+    });
+  }
+
+  /**
+   * The ETag of a page of GET /groups: the md5 of the id, JSON and member count of the
+   * groups of the page, and of the number of matching groups if it is counted. It is
+   * computed when the page is read, so that writes of groups and users need not maintain
+   * a version.
+   * @param where - empty or the WHERE clause translated from the CQL query
+   */
+  private void getGroupsTag(Vertx vertx, String tenantId, boolean replica, String where, int offset,
+      int limit, boolean count, Handler<AsyncResult<String>> handler) {
+    String table = SqlUtil.table(tenantId, GROUP_TABLE);
+    String sql = "SELECT md5(coalesce(string_agg(p.id || ':' || p.jsonb || ':' || coalesce(c.member_count, 0),"
+        + " ',' ORDER BY p.id), '')"
+        + (count ? " || ':' || (SELECT count(*) FROM (SELECT 1 FROM " + table + where + ") AS matches)" : "")
+        + ") FROM (SELECT id::text AS id, jsonb::text AS jsonb FROM " + table + where
+        + " LIMIT " + limit + " OFFSET " + offset + ") AS p LEFT JOIN "
+        + SqlUtil.table(tenantId, MEMBER_COUNT_TABLE) + " AS c ON c.group_id = lower(p.id)";
+    SqlUtil.query(vertx, tenantId, replica, sql, reply -> {
+      if(reply.failed()){
+        handler.handle(Future.failedFuture(reply.cause()));
+        return;
+      }
+      handler.handle(Future.succeededFuture(reply.result().getResults().get(0).getString(0)));
+    });
+  }
+
+  /**
+   * A page of groups as PostgresClient.get returns it: the list and the count. From the
+   * {@link ReadReplica} the count is a window function of the page query.
+   */
+  private void selectGroups(Vertx vertx, String tenantId, boolean replica, CQLWrapper cql, String where,
+      int offset, int limit, boolean count, Handler<AsyncResult<Object[]>> handler) throws Exception {
+    if(!replica){
+      SqlUtil.client(vertx, tenantId).get(GROUP_TABLE, Usergroup.class,
+        new String[]{"*"}, cql, count, true, handler);
+      return;
+    }
+    String sql = "SELECT id::text, jsonb::text, count(*) OVER () FROM " + SqlUtil.table(tenantId, GROUP_TABLE)
+        + where + " LIMIT " + limit + " OFFSET " + offset;
+    SqlUtil.query(vertx, tenantId, true, sql, reply -> {
+      if(reply.failed()){
+        handler.handle(Future.failedFuture(reply.cause()));
+        return;
+      }
+      List<Usergroup> groups = new ArrayList<>();
+      Integer total = 0;
+      try {
+        for(JsonArray row : reply.result().getResults()){
+          groups.add(Json.decodeValue(row.getString(1), Usergroup.class).withId(row.getString(0)));
+          total = row.getLong(2).intValue();
+        }
+      } catch (Exception e) {
+        handler.handle(Future.failedFuture(e));
+        return;
+      }
+      if(!count || !groups.isEmpty() || offset == 0){
+        handler.handle(Future.succeededFuture(new Object[] { groups, count ? total : null }));
+        return;
+      }
+      /* a page behind the last group has no row to carry the count */
+      String countSql = "SELECT count(*) FROM (SELECT 1 FROM " + SqlUtil.table(tenantId, GROUP_TABLE)
+          + where + ") AS matches";
+      SqlUtil.query(vertx, tenantId, true, countSql, counted -> {
+        if(counted.failed()){
+          handler.handle(Future.failedFuture(counted.cause()));
+        } else {
+          int matches = counted.result().getResults().get(0).getLong(0).intValue();
+          handler.handle(Future.succeededFuture(new Object[] { groups, matches }));
+        }
+      });
+    });
+  }
+
+  /**
+   * Set the memberCount of the groups from the counts maintained by the trigger on the
+   * users table, with a single query.
+   */
+  private void setMemberCounts(Vertx vertx, String tenantId, boolean replica, List<Usergroup> groups,
+      Handler<AsyncResult<Void>> handler) {
+    if(groups.isEmpty()){
+      handler.handle(Future.succeededFuture());
+      return;
+    }
+    JsonArray ids = new JsonArray();
+    for(Usergroup group : groups){
+      group.setMemberCount(0);
+      ids.add(group.getId().toLowerCase());
+    }
+    String sql = "SELECT group_id, member_count FROM " + SqlUtil.table(tenantId, MEMBER_COUNT_TABLE)
+        + " WHERE group_id IN (" + SqlUtil.placeholders(ids.size()) + ")";
+    SqlUtil.query(vertx, tenantId, replica, sql, ids, reply -> {
+      if(reply.failed()){
+        handler.handle(Future.failedFuture(reply.cause()));
+        return;
+      }
+      Map<String, Integer> counts = new HashMap<>();
+      for(JsonArray row : reply.result().getResults()){
+        counts.put(row.getString(0), row.getInteger(1));
+      }
+      for(Usergroup group : groups){
+        Integer members = counts.get(group.getId().toLowerCase());
+        if(members != null){
+          group.setMemberCount(members);
+        }
       }
+      handler.handle(Future.succeededFuture());
     });
   }
 
   private CQLWrapper getCQL(String table, String query, int limit, int offset) throws FieldException {
-    CQL2PgJSON cql2pgJson = new CQL2PgJSON(table+".jsonb");
+    CachingCQL2PgJSON cql2pgJson = CachingCQL2PgJSON.getInstance(table+".jsonb");
     return new CQLWrapper(cql2pgJson, query).setLimit(new Limit(limit)).setOffset(new Offset(offset));
   }
 
@@ -1,15 +1,33 @@
 package org.folio.rest.impl;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import javax.ws.rs.Path;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import org.folio.rest.annotations.Validate;
+import org.folio.rest.jaxrs.model.Errors;
 import org.folio.rest.jaxrs.model.User;
+import org.folio.rest.jaxrs.model.UserBulkDeleteResult;
+import org.folio.rest.jaxrs.model.UserChange;
+import org.folio.rest.jaxrs.model.UserChanges;
+import org.folio.rest.jaxrs.model.UserLookupRequest;
+import org.folio.rest.jaxrs.model.UserLookupResponse;
+import org.folio.rest.jaxrs.model.UserLookupResult;
+import org.folio.rest.jaxrs.model.UserPatch;
+import org.folio.rest.jaxrs.model.UserSearchResult;
+import org.folio.rest.jaxrs.model.UserSearchResults;
+import org.folio.rest.jaxrs.model.UserdataBatchResponse;
+import org.folio.rest.jaxrs.model.UserdataBatchResult;
 import org.folio.rest.jaxrs.model.UserdataCollection;
-import org.folio.rest.jaxrs.model.Usergroup;
 import org.folio.rest.jaxrs.resource.UsersResource;
 import org.folio.rest.persist.PostgresClient;
 import org.folio.rest.persist.Criteria.Criteria;
@@ -21,17 +39,36 @@ import org.folio.rest.tools.messages.MessageConsts;
 import org.folio.rest.tools.messages.Messages;
 import org.folio.rest.tools.utils.OutStream;
 import org.folio.rest.tools.utils.TenantTool;
+import org.folio.rest.utils.Bulkhead;
+import org.folio.rest.utils.CachingCQL2PgJSON;
+import org.folio.rest.utils.ChangeCursor;
+import org.folio.rest.utils.ETag;
+import org.folio.rest.utils.KeysetCursor;
+import org.folio.rest.utils.MergePatch;
+import org.folio.rest.utils.Metrics;
+import org.folio.rest.utils.PatronGroupCache;
+import org.folio.rest.utils.Projection;
+import org.folio.rest.utils.ReadReplica;
+import org.folio.rest.utils.ResponseFormat;
+import org.folio.rest.utils.SqlUtil;
+import org.folio.rest.utils.UserCache;
 import org.folio.rest.utils.ValidationHelper;
-import org.z3950.zing.cql.cql2pgjson.CQL2PgJSON;
 import org.z3950.zing.cql.cql2pgjson.FieldException;
+import org.z3950.zing.cql.cql2pgjson.QueryValidationException;
 
 import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
 import io.vertx.core.Context;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.sql.ResultSet;
 
 
 /**
@@ -42,289 +79,784 @@ import io.vertx.core.logging.LoggerFactory;
 public class UsersAPI implements UsersResource {
 
   public static final String TABLE_NAME_USER = "users";
+  /** latest change of each user, written by a trigger on the users table */
+  public static final String TABLE_NAME_CHANGES = "user_changes";
 
   private final Messages messages = Messages.getInstance();
   //private final String USER_COLLECTION = "user";
   private static final String USER_ID_FIELD = "'id'";
   private static final String USER_NAME_FIELD = "'username'";
   private static final String OKAPI_HEADER_TENANT = "x-okapi-tenant";
-  private final Logger logger = LoggerFactory.getLogger(UsersAPI.class);
-
-
-  public UsersAPI(Vertx vertx, String tenantId) {
-    PostgresClient.getInstance(vertx, tenantId).setIdField("id");
-  }
-
-  private String getTableName(String tenantId, String tableBase) {
-    //This hardly deserves to be a method, but since details may change, I'm
-    //trying to keep it flexible
-    //return tenantId + "." + tableBase;
-    return tableBase;
+  private static final String USERNAME_UNIQUE_INDEX = "users_username_idx_unique";
+  private static final String USER_ID_FIELD_NAME = "id";
+  private static final String ID_EXPRESSION = "jsonb->>'id'";
+  /** record version, set by a trigger on every insert and update */
+  private static final String VERSION_FIELD = "_version";
+  /** fields getUsers can sort by, each backed by an index on (expression, id) */
+  private static final Map<String, String> SORT_FIELDS = new LinkedHashMap<>();
+  static {
+    SORT_FIELDS.put(USER_ID_FIELD_NAME, ID_EXPRESSION);
+    SORT_FIELDS.put("username", "lower(jsonb->>'username')");
+    SORT_FIELDS.put("barcode", "coalesce(jsonb->>'barcode', '')");
+    SORT_FIELDS.put("personal.lastName", "lower(coalesce(jsonb->'personal'->>'lastName', ''))");
   }
+  /** fields of the type-ahead search, each has a C collated index for prefix matches */
+  private static final String[] SEARCH_FIELDS = {
+    "lower(jsonb->'personal'->>'lastName')", "lower(jsonb->'personal'->>'firstName')",
+    "lower(jsonb->'personal'->>'email')", "lower(jsonb->>'username')", "lower(jsonb->>'barcode')" };
+  /** shorter words have no trigram and would make the trigram index scan all of its entries */
+  private static final int MIN_TRIGRAM_WORD = 3;
+  private static final String SEARCH_PROJECTION = "jsonb_strip_nulls(jsonb_build_object("
+      + "'id', jsonb->'id', 'username', jsonb->'username', 'barcode', jsonb->'barcode',"
+      + " 'active', jsonb->'active', 'patronGroup', jsonb->'patronGroup',"
+      + " 'lastName', jsonb->'personal'->'lastName', 'firstName', jsonb->'personal'->'firstName',"
+      + " 'email', jsonb->'personal'->'email'))::text";
+  private static final int MAX_BATCH_SIZE = 10000;
+  private static final int BATCH_CHUNK_SIZE = 500;
+  /** users deleted by one statement of a bulk delete, keeps its locks and WAL short */
+  private static final int DELETE_CHUNK_SIZE = 500;
+  private static final String BATCH_CREATED = "created";
+  private static final String BATCH_FAILED = "failed";
+  private final Logger logger = LoggerFactory.getLogger(UsersAPI.class);
 
 
   private CQLWrapper getCQL(String query, int limit, int offset) throws FieldException {
-    CQL2PgJSON cql2pgJson = new CQL2PgJSON(TABLE_NAME_USER+".jsonb");
+    CachingCQL2PgJSON cql2pgJson = CachingCQL2PgJSON.getInstance(TABLE_NAME_USER+".jsonb");
     return new CQLWrapper(cql2pgJson, query).setLimit(new Limit(limit)).setOffset(new Offset(offset));
   }
 
   @Validate
   @Override
-  public void getUsers(String query, String orderBy,
+  public void getUsers(String accept, String after, TotalRecords totalRecords, String fields, String query,
+          String orderBy, Order order, int offset, int limit, String lang,
+          Map <String, String> okapiHeaders,
+          Handler<AsyncResult<Response>> resultHandler,
+          Context vertxContext) throws Exception {
+    Bulkhead.getInstance().execute(vertxContext, okapiHeaders.get(OKAPI_HEADER_TENANT), Bulkhead.Kind.SEARCH,
+        ResponseFormat.negotiate(accept).encoder("GET /users",
+            Metrics.getInstance().request("GET /users", okapiHeaders.get(OKAPI_HEADER_TENANT), resultHandler)),
+        asyncResultHandler -> findUsers(after, totalRecords, fields, query, orderBy, order, offset, limit,
+            lang, okapiHeaders, asyncResultHandler, vertxContext));
+  }
+
+  private void findUsers(String after, TotalRecords totalRecords, String fields, String query, String orderBy,
           Order order, int offset, int limit, String lang,
           Map <String, String> okapiHeaders,
           Handler<AsyncResult<Response>> asyncResultHandler,
           Context vertxContext) throws Exception {
     logger.debug("Getting users");
+    if(orderBy != null || after != null || fields != null
+        || (totalRecords != null && totalRecords != TotalRecords.exact)) {
+      getUsersBySql(after, totalRecords, fields, query, orderBy, order, offset, limit, lang, okapiHeaders,
+          asyncResultHandler, vertxContext);
+      return;
+    }
+    if(ReadReplica.use(okapiHeaders)) {
+      getUsersFromReplica(query, offset, limit, lang, okapiHeaders, asyncResultHandler, vertxContext);
+      return;
+    }
+    String tenantId = TenantTool.calculateTenantId(okapiHeaders.get(OKAPI_HEADER_TENANT));
+    String[] fieldList = {"*"};
+    logger.debug("tenantId = " + tenantId);
     try {
       CQLWrapper cql = getCQL(query,limit,offset);
-      vertxContext.runOnContext(v -> {
-        String tenantId = TenantTool.calculateTenantId(okapiHeaders.get(OKAPI_HEADER_TENANT));
-        String tableName = getTableName(tenantId, TABLE_NAME_USER);
-        String[] fieldList = {"*"};
-        //Criterion criterion = Criterion.json2Criterion(query);
-        //criterion.setLimit(new Limit(limit)).setOffset(new Offset(offset));
-        logger.debug("Headers present are: " + okapiHeaders.keySet().toString());
-        //logger.debug("Using criterion: " + criterion.toString());
-        logger.debug("tenantId = " + tenantId);
-
-            try {
-              PostgresClient.getInstance(vertxContext.owner(), tenantId).get(tableName,
-                      User.class, fieldList, cql, true, false, reply -> {
-                try {
-                  if(reply.succeeded()) {
-                    UserdataCollection userCollection = new UserdataCollection();
-                    List<User> users = (List<User>)reply.result()[0];
-                    userCollection.setUsers(users);
-                    userCollection.setTotalRecords((Integer)reply.result()[1]);
-                    asyncResultHandler.handle(Future.succeededFuture(
-                            GetUsersResponse.withJsonOK(userCollection)));
-                  } else {
-                    asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
-                            GetUsersResponse.withPlainInternalServerError(
-                                    reply.cause().getMessage())));
-                  }
-                } catch(Exception e) {
-                  logger.debug(e.getLocalizedMessage());
-
-                  asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
-                            GetUsersResponse.withPlainInternalServerError(
-                                    reply.cause().getMessage())));
-                }
-              });
-            } catch (IllegalStateException e) {
-              logger.debug("IllegalStateException: " + e.getLocalizedMessage());
-              asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withPlainBadRequest(
-                        "CQL Illegal State Error for '" + query + "': " + e.getLocalizedMessage())));
-            }
-              catch(Exception e) {
-              Throwable cause = e;
-              while(cause.getCause() != null) {
-                  cause = cause.getCause();
-              }
-              logger.debug("Got error " + cause.getClass().getSimpleName() + ": " + e.getLocalizedMessage());
-              if(cause.getClass().getSimpleName().contains("CQLParseException")) {
-                logger.debug("BAD CQL");
-                asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withPlainBadRequest(
-                        "CQL Parsing Error for '" + query + "': " + cause.getLocalizedMessage())));
-              } else {
-                asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
-                              GetUsersResponse.withPlainInternalServerError(
-                                      messages.getMessage(lang,
-                                              MessageConsts.InternalServerError))));
-              }
-            }
-        });
+      long start = System.nanoTime();
+      SqlUtil.client(vertxContext.owner(), tenantId).get(TABLE_NAME_USER,
+              User.class, fieldList, cql, true, false, reply -> {
+        Metrics.getInstance().time(Metrics.Phase.DB, "GET /users", start);
+        try {
+          if(reply.succeeded()) {
+            UserdataCollection userCollection = new UserdataCollection();
+            List<User> users = (List<User>)reply.result()[0];
+            userCollection.setUsers(users);
+            userCollection.setTotalRecords((Integer)reply.result()[1]);
+            asyncResultHandler.handle(Future.succeededFuture(
+                    GetUsersResponse.withJsonOK(userCollection)));
+          } else {
+            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+                    GetUsersResponse.withPlainInternalServerError(
+                            reply.cause().getMessage())));
+          }
+        } catch(Exception e) {
+          logger.debug(e.getLocalizedMessage());
+          asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+                    GetUsersResponse.withPlainInternalServerError(
+                            messages.getMessage(lang, MessageConsts.InternalServerError))));
+        }
+      });
     }
     catch(FieldException fe){
       logger.error("BAD CQL " + fe.getLocalizedMessage());
       asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withPlainBadRequest(
               "CQL Parsing Error for '" + query + "': " + fe.getLocalizedMessage())));
     }
+    catch (IllegalStateException e) {
+      logger.debug("IllegalStateException: " + e.getLocalizedMessage());
+      asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withPlainBadRequest(
+                "CQL Illegal State Error for '" + query + "': " + e.getLocalizedMessage())));
+    }
     catch(Exception e) {
-      logger.error(e.getLocalizedMessage(), e);
-      if(e.getCause() != null && e.getCause().getClass().getSimpleName().contains("CQLParseException")) {
+      Throwable cause = e;
+      while(cause.getCause() != null) {
+          cause = cause.getCause();
+      }
+      logger.debug("Got error " + cause.getClass().getSimpleName() + ": " + e.getLocalizedMessage());
+      if(cause.getClass().getSimpleName().contains("CQLParseException")) {
         logger.debug("BAD CQL");
         asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withPlainBadRequest(
-                "CQL Parsing Error for '" + query + "': " + e.getLocalizedMessage())));
+                "CQL Parsing Error for '" + query + "': " + cause.getLocalizedMessage())));
       } else {
+        logger.error(e.getLocalizedMessage(), e);
         asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
-                          GetUsersResponse.withPlainInternalServerError(
-                                  messages.getMessage(lang,
-                                          MessageConsts.InternalServerError))));
+                      GetUsersResponse.withPlainInternalServerError(
+                              messages.getMessage(lang,
+                                      MessageConsts.InternalServerError))));
+      }
+    }
+  }
+
+  /**
+   * getUsers from the {@link ReadReplica}: the query of PostgresClient.get, with the
+   * count as a window function of the page query.
+   */
+  private void getUsersFromReplica(String query, int offset, int limit, String lang,
+          Map <String, String> okapiHeaders,
+          Handler<AsyncResult<Response>> asyncResultHandler,
+          Context vertxContext) {
+    String where;
+    try {
+      where = query == null ? null : CachingCQL2PgJSON.getInstance(TABLE_NAME_USER+".jsonb").cql2pgJson(query);
+    } catch(QueryValidationException e) {
+      logger.debug("BAD CQL " + e.getLocalizedMessage());
+      asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withPlainBadRequest(
+              "CQL Parsing Error for '" + query + "': " + e.getLocalizedMessage())));
+      return;
+    }
+    String tenantId = TenantTool.calculateTenantId(okapiHeaders.get(OKAPI_HEADER_TENANT));
+    String sql = "SELECT jsonb::text, count(*) OVER () FROM " + SqlUtil.table(tenantId, TABLE_NAME_USER)
+        + (where == null ? "" : " WHERE " + where) + " LIMIT " + limit + " OFFSET " + offset;
+    Vertx vertx = vertxContext.owner();
+    long start = System.nanoTime();
+    SqlUtil.query(vertx, tenantId, true, sql, page -> {
+      Metrics.getInstance().time(Metrics.Phase.DB, "GET /users", start);
+      if(page.failed()) {
+        logger.error(page.cause().getLocalizedMessage(), page.cause());
+        asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withPlainInternalServerError(
+                messages.getMessage(lang, MessageConsts.InternalServerError))));
+        return;
+      }
+      List<JsonArray> rows = page.result().getResults();
+      List<User> users = new ArrayList<>(rows.size());
+      try {
+        for(JsonArray row : rows) {
+          users.add(Json.decodeValue(row.getString(0), User.class));
+        }
+      } catch(Exception e) {
+        logger.error(e.getLocalizedMessage(), e);
+        asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withPlainInternalServerError(
+                messages.getMessage(lang, MessageConsts.InternalServerError))));
+        return;
+      }
+      UserdataCollection userCollection = new UserdataCollection().withUsers(users);
+      if(!rows.isEmpty() || offset == 0) {
+        userCollection.setTotalRecords(rows.isEmpty() ? 0 : rows.get(0).getLong(1).intValue());
+        asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withJsonOK(userCollection)));
+        return;
+      }
+      /* a page behind the last user has no row to carry the count; the subquery
+         allows the ORDER BY of a sortby query */
+      String countSql = "SELECT count(*) FROM (SELECT 1 FROM " + SqlUtil.table(tenantId, TABLE_NAME_USER)
+          + (where == null ? "" : " WHERE " + where) + ") AS matches";
+      SqlUtil.query(vertx, tenantId, true, countSql, count -> {
+        if(count.failed()) {
+          logger.error(count.cause().getLocalizedMessage(), count.cause());
+          asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withPlainInternalServerError(
+                  messages.getMessage(lang, MessageConsts.InternalServerError))));
+          return;
+        }
+        asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withJsonOK(
+                userCollection.withTotalRecords(count.result().getResults().get(0).getLong(0).intValue()))));
+      });
+    });
+  }
+
+  /**
+   * getUsers with an explicit sort order, an after token, a count other than exact or a
+   * projection. The SQL is built here so that the ORDER BY and the keyset condition match
+   * the sort indexes of the users table, so that the count can be estimated or left out,
+   * and so that a projection is built by the database and passed through as it is.
+   */
+  private void getUsersBySql(String after, TotalRecords totalRecords, String fields, String query, String orderBy,
+          Order order, int offset, int limit, String lang,
+          Map <String, String> okapiHeaders,
+          Handler<AsyncResult<Response>> asyncResultHandler,
+          Context vertxContext) {
+    boolean sorted = orderBy != null || after != null;
+    String sortField = orderBy == null ? USER_ID_FIELD_NAME : orderBy;
+    String sortExpression = SORT_FIELDS.get(sortField);
+    if(sortExpression == null) {
+      asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withPlainBadRequest(
+              "Can not sort by " + orderBy + ", supported fields are " + SORT_FIELDS.keySet())));
+      return;
+    }
+    boolean descending = order == Order.desc;
+    KeysetCursor cursor = null;
+    if(after != null) {
+      try {
+        cursor = KeysetCursor.decode(after);
+      } catch(IllegalArgumentException e) {
+        asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withPlainBadRequest(e.getMessage())));
+        return;
+      }
+      if(!cursor.matches(sortField, descending)) {
+        asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withPlainBadRequest(
+                "The after token was issued for a different orderBy or order")));
+        return;
+      }
+    }
+    if(query != null && CachingCQL2PgJSON.isSorted(query)) {
+      asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withPlainBadRequest(
+              "Use orderBy instead of sortby together with orderBy, after or fields")));
+      return;
+    }
+    Projection projection;
+    try {
+      /* the id is always included, clients of a list need it to get at the whole user */
+      projection = fields == null ? null : Projection.parse(fields, USER_ID_FIELD_NAME);
+    } catch(IllegalArgumentException e) {
+      asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withPlainBadRequest(e.getMessage())));
+      return;
+    }
+    String where = null;
+    try {
+      if(query != null) {
+        where = "(" + CachingCQL2PgJSON.getInstance(TABLE_NAME_USER+".jsonb").cql2pgJson(query) + ")";
       }
+    } catch(QueryValidationException e) {
+      logger.debug("BAD CQL " + e.getLocalizedMessage());
+      asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withPlainBadRequest(
+              "CQL Parsing Error for '" + query + "': " + e.getLocalizedMessage())));
+      return;
+    }
+    String tenantId = TenantTool.calculateTenantId(okapiHeaders.get(OKAPI_HEADER_TENANT));
+    String table = SqlUtil.table(tenantId, TABLE_NAME_USER);
+
+    String pageWhere = where;
+    if(cursor != null) {
+      String keyset = cursor.condition(sortExpression, ID_EXPRESSION);
+      pageWhere = where == null ? keyset : where + " AND " + keyset;
+    }
+    String direction = descending ? " DESC" : " ASC";
+    StringBuilder sql = new StringBuilder("SELECT ")
+        .append(projection == null ? "jsonb::text" : projection.sql("jsonb"))
+        .append(", ").append(sortExpression).append(", ").append(ID_EXPRESSION)
+        .append(" FROM ").append(table);
+    if(pageWhere != null) {
+      sql.append(" WHERE ").append(pageWhere);
+    }
+    if(sorted) {
+      sql.append(" ORDER BY ").append(sortExpression).append(direction);
+      if(!sortExpression.equals(ID_EXPRESSION)) {
+        sql.append(", ").append(ID_EXPRESSION).append(direction);
+      }
+    }
+    sql.append(" LIMIT ").append(limit);
+    if(cursor == null) {
+      sql.append(" OFFSET ").append(offset);
+    }
+
+    Vertx vertx = vertxContext.owner();
+    boolean replica = ReadReplica.use(okapiHeaders);
+    /* a page after a cursor costs the same wherever it is, unless a client asks for an
+       exact count of all matches with every page */
+    TotalRecords counting = totalRecords != null ? totalRecords
+        : cursor != null ? TotalRecords.estimated : TotalRecords.exact;
+    Future<Integer> count = Future.future();
+    if(counting == TotalRecords.none) {
+      count.complete(null);
+    } else {
+      SqlUtil.count(vertx, tenantId, replica, TABLE_NAME_USER, where, counting == TotalRecords.estimated,
+          count.completer());
     }
+    Future<ResultSet> page = Future.future();
+    SqlUtil.query(vertx, tenantId, replica, sql.toString(),
+        Metrics.getInstance().timed(Metrics.Phase.DB, "GET /users", page.completer()));
+    CompositeFuture.all(count, page).setHandler(reply -> {
+      try {
+        if(reply.failed()) {
+          logger.error(reply.cause().getLocalizedMessage(), reply.cause());
+          asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withPlainInternalServerError(
+                  messages.getMessage(lang, MessageConsts.InternalServerError))));
+          return;
+        }
+        long decodeStart = System.nanoTime();
+        List<JsonArray> rows = page.result().getResults();
+        String next = null;
+        if(sorted && rows.size() == limit) {
+          JsonArray last = rows.get(rows.size() - 1);
+          next = new KeysetCursor(sortField, descending, last.getString(1), last.getString(2)).encode();
+        }
+        if(projection != null) {
+          /* the projected users are not valid users, they are passed through without
+             building User objects */
+          StringBuilder json = new StringBuilder("{\"users\":[");
+          for(int i = 0; i < rows.size(); i++) {
+            json.append(i == 0 ? "" : ",").append(rows.get(i).getString(0));
+          }
+          json.append(']');
+          if(count.result() != null) {
+            json.append(",\"total_records\":").append(count.result());
+          }
+          if(next != null) {
+            json.append(",\"next\":").append(Json.encode(next));
+          }
+          json.append('}');
+          Metrics.getInstance().time(Metrics.Phase.SERIALIZATION, "GET /users", decodeStart);
+          asyncResultHandler.handle(Future.succeededFuture(
+                  Response.ok(json.toString(), MediaType.APPLICATION_JSON).build()));
+          return;
+        }
+        List<User> users = new ArrayList<>(rows.size());
+        for(JsonArray row : rows) {
+          users.add(Json.decodeValue(row.getString(0), User.class));
+        }
+        Metrics.getInstance().time(Metrics.Phase.SERIALIZATION, "GET /users", decodeStart);
+        UserdataCollection userCollection = new UserdataCollection();
+        userCollection.setUsers(users);
+        userCollection.setTotalRecords(count.result());
+        userCollection.setNext(next);
+        asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withJsonOK(userCollection)));
+      } catch(Exception e) {
+        logger.error(e.getLocalizedMessage(), e);
+        asyncResultHandler.handle(Future.succeededFuture(GetUsersResponse.withPlainInternalServerError(
+                messages.getMessage(lang, MessageConsts.InternalServerError))));
+      }
+    });
   }
 
   @Validate
   @Override
-  public void postUsers(String lang, User entity,
+  public void getUsersExport(String query, String after, int limit, String lang,
+          Map<String, String> okapiHeaders,
+          Handler<AsyncResult<Response>> resultHandler,
+          Context vertxContext) throws Exception {
+    Bulkhead.getInstance().execute(vertxContext, okapiHeaders.get(OKAPI_HEADER_TENANT), Bulkhead.Kind.SEARCH,
+        Metrics.getInstance().request("GET /users/export", okapiHeaders.get(OKAPI_HEADER_TENANT), resultHandler),
+        asyncResultHandler -> exportUsers(query, after, limit, lang, okapiHeaders, asyncResultHandler,
+            vertxContext));
+  }
+
+  private void exportUsers(String query, String after, int limit, String lang,
           Map<String, String> okapiHeaders,
           Handler<AsyncResult<Response>> asyncResultHandler,
           Context vertxContext) throws Exception {
+    if(query != null && CachingCQL2PgJSON.isSorted(query)) {
+      asyncResultHandler.handle(Future.succeededFuture(GetUsersExportResponse.withPlainBadRequest(
+              "An export is sorted by id, sortby is not supported")));
+      return;
+    }
+    String tenantId = TenantTool.calculateTenantId(okapiHeaders.get(OKAPI_HEADER_TENANT));
+    StringBuilder sql = new StringBuilder("SELECT jsonb::text FROM ")
+        .append(SqlUtil.table(tenantId, TABLE_NAME_USER));
+    String where = null;
     try {
-      vertxContext.runOnContext( v -> {
-        String tenantId = TenantTool.calculateTenantId(okapiHeaders.get(OKAPI_HEADER_TENANT));
-        Criteria idCrit = new Criteria();
-        idCrit.addField(USER_ID_FIELD);
-        idCrit.setOperation("=");
-        idCrit.setValue(entity.getId());
-        Criteria nameCrit = new Criteria();
-        nameCrit.addField(USER_NAME_FIELD);
-        nameCrit.setOperation("=");
-        nameCrit.setValue(entity.getUsername());
-        Criterion crit = new Criterion();
-        crit.addCriterion(idCrit, "OR", nameCrit);
-        String tableName = getTableName(tenantId, TABLE_NAME_USER);
-
-            try {
-              PostgresClient.getInstance(vertxContext.owner(), TenantTool.calculateTenantId(tenantId)).get(tableName,
-                      User.class, crit, true, getReply -> {
-                  logger.debug("Attempting to get existing users of same id and/or username");
-                  if(getReply.failed()) {
-                    logger.debug("Attempt to get users failed: " + getReply.cause().getMessage());
-                    asyncResultHandler.handle(Future.succeededFuture(
-                                  PostUsersResponse.withPlainInternalServerError(
-                                          getReply.cause().getMessage())));
-                  } else {
-                    List<User> userList = (List<User>)getReply.result()[0];
-                    if(userList.size() > 0) {
-                      logger.debug("User with this id already exists");
-                      asyncResultHandler.handle(Future.succeededFuture(
-                              PostUsersResponse.withJsonUnprocessableEntity(
-                                ValidationHelper.createValidationErrorMessage(
-                                  USER_NAME_FIELD, entity.getUsername(),
-                                  "User with this id already exists"))));
-                      //uh oh
-                    } else {
-                      PostgresClient postgresClient = PostgresClient.getInstance(vertxContext.owner(), tenantId);
-                      try {
-                        getPG(vertxContext.owner(), tenantId, entity, handler -> {
-
-                          int res = handler.result();
-                          if(res == 0){
-                            String message = "Can not add " + entity.getPatronGroup() + ". Patron group not found";
-                            logger.error(message);
-                            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(PostUsersResponse
-                              .withPlainBadRequest(message)));
-                            return;
-                          }
-                          else if(res == -1){
-                            asyncResultHandler.handle(Future.succeededFuture(
-                              PostUsersResponse
-                                .withPlainInternalServerError("")));
-                            return;
-                          }
-                          else{
-                            postgresClient.startTx(beginTx -> {
-                              logger.debug("Attempting to save new record");
-                              try {
-                                postgresClient.save(beginTx, tableName, entity, reply -> {
-                                  try {
-                                    if(reply.succeeded()) {
-                                      logger.debug("Save successful");
-                                      final User user = entity;
-                                      user.setId(entity.getId());
-                                      OutStream stream = new OutStream();
-                                      stream.setData(user);
-                                      postgresClient.endTx(beginTx, done -> {
-                                        asyncResultHandler.handle(Future.succeededFuture(PostUsersResponse.withJsonCreated(reply.result(), stream)));
-                                      });
-                                    } else {
-                                      asyncResultHandler.handle(Future.succeededFuture(
-                                              PostUsersResponse.withPlainBadRequest(
-                                                      messages.getMessage(
-                                                              lang, MessageConsts.UnableToProcessRequest))));
-
-                                    }
-                                  } catch(Exception e) {
-                                    asyncResultHandler.handle(Future.succeededFuture(
-                                        PostUsersResponse.withPlainInternalServerError(
-                                                e.getMessage())));
-                                  }
-                                });
-                              } catch(Exception e) {
-                                asyncResultHandler.handle(Future.succeededFuture(
-                                        PostUsersResponse.withPlainInternalServerError(
-                                                getReply.cause().getMessage())));
-                              }
-                            });
-                          }
-                        });
-                      } catch (Exception e) {
-                        logger.error(e.getLocalizedMessage(), e);
-                        asyncResultHandler.handle(Future.succeededFuture(
-                          PutUsersByUserIdResponse.withPlainInternalServerError(
-                                  messages.getMessage(lang, MessageConsts.InternalServerError))));
-                      }
-                    }
-                 }
-                });
-            } catch(Exception e) {
-              asyncResultHandler.handle(Future.succeededFuture(
-                            PostUsersResponse.withPlainInternalServerError(
-                            messages.getMessage(lang, MessageConsts.InternalServerError))));
-            }
+      if(query != null) {
+        where = "(" + CachingCQL2PgJSON.getInstance(TABLE_NAME_USER+".jsonb").cql2pgJson(query) + ")";
+      }
+    } catch(QueryValidationException e) {
+      logger.debug("BAD CQL " + e.getLocalizedMessage());
+      asyncResultHandler.handle(Future.succeededFuture(GetUsersExportResponse.withPlainBadRequest(
+              "CQL Parsing Error for '" + query + "': " + e.getLocalizedMessage())));
+      return;
+    }
+    if(after != null) {
+      String keyset = "jsonb->>'id' > " + SqlUtil.literal(after);
+      where = where == null ? keyset : where + " AND " + keyset;
+    }
+    if(where != null) {
+      sql.append(" WHERE ").append(where);
+    }
+    sql.append(" ORDER BY jsonb->>'id' LIMIT ").append(limit);
+    Future<ResultSet> found = Future.future();
+    SqlUtil.query(vertxContext.owner(), tenantId, sql.toString(),
+        Metrics.getInstance().timed(Metrics.Phase.DB, "GET /users/export", found.completer()));
+    found.<Response>map(result -> {
+      /* the stored documents are passed through as they are, no User objects are built */
+      StringBuilder ndjson = new StringBuilder();
+      for(JsonArray row : result.getResults()) {
+        ndjson.append(row.getString(0)).append('\n');
+      }
+      return GetUsersExportResponse.withPlainOK(ndjson.toString());
+    }).otherwise(e -> {
+      logger.error(e.getLocalizedMessage(), e);
+      return GetUsersExportResponse.withPlainInternalServerError(
+              messages.getMessage(lang, MessageConsts.InternalServerError));
+    }).setHandler(asyncResultHandler);
+  }
+
+  @Validate
+  @Override
+  public void deleteUsers(String query, boolean dryRun, int limit, String lang,
+          Map<String, String> okapiHeaders,
+          Handler<AsyncResult<Response>> resultHandler,
+          Context vertxContext) throws Exception {
+    Handler<AsyncResult<Response>> asyncResultHandler = Metrics.getInstance().request(
+        "DELETE /users", okapiHeaders.get(OKAPI_HEADER_TENANT), resultHandler);
+    if(CachingCQL2PgJSON.isSorted(query)) {
+      asyncResultHandler.handle(Future.succeededFuture(DeleteUsersResponse.withPlainBadRequest(
+              "A delete is not sorted, sortby is not supported")));
+      return;
+    }
+    String where;
+    try {
+      where = "(" + CachingCQL2PgJSON.getInstance(TABLE_NAME_USER+".jsonb").cql2pgJson(query) + ")";
+    } catch(QueryValidationException e) {
+      logger.debug("BAD CQL " + e.getLocalizedMessage());
+      asyncResultHandler.handle(Future.succeededFuture(DeleteUsersResponse.withPlainBadRequest(
+              "CQL Parsing Error for '" + query + "': " + e.getLocalizedMessage())));
+      return;
+    }
+    String tenantId = TenantTool.calculateTenantId(okapiHeaders.get(OKAPI_HEADER_TENANT));
+    Vertx vertx = vertxContext.owner();
+    if(dryRun) {
+      SqlUtil.count(vertx, tenantId, TABLE_NAME_USER, where, false, count -> {
+        if(count.failed()) {
+          logger.error(count.cause().getLocalizedMessage(), count.cause());
+          asyncResultHandler.handle(Future.succeededFuture(DeleteUsersResponse.withPlainInternalServerError(
+                  messages.getMessage(lang, MessageConsts.InternalServerError))));
+          return;
+        }
+        asyncResultHandler.handle(Future.succeededFuture(DeleteUsersResponse.withJsonOK(new UserBulkDeleteResult()
+                .withMatched(count.result()).withDeleted(0).withComplete(count.result() == 0))));
+      });
+      return;
+    }
+    long start = System.nanoTime();
+    deleteChunks(vertx, tenantId, where, limit, 0, deleted -> {
+      Metrics.getInstance().time(Metrics.Phase.DB, "DELETE /users", start);
+      if(deleted.failed()) {
+        logger.error(deleted.cause().getLocalizedMessage(), deleted.cause());
+        asyncResultHandler.handle(Future.succeededFuture(DeleteUsersResponse.withPlainInternalServerError(
+                messages.getMessage(lang, MessageConsts.InternalServerError))));
+        return;
+      }
+      asyncResultHandler.handle(Future.succeededFuture(DeleteUsersResponse.withJsonOK(deleted.result())));
+    });
+  }
+
+  /**
+   * Delete the users matching where, {@link #DELETE_CHUNK_SIZE} at a time, until limit
+   * users are deleted or a chunk finds less users than it may delete. Each chunk commits
+   * on its own, so a failure leaves the chunks before it deleted; the user cache of the
+   * tenant is dropped after every chunk that deleted something.
+   * @param deleted - users deleted by the chunks before
+   */
+  private void deleteChunks(Vertx vertx, String tenantId, String where, int limit, int deleted,
+          Handler<AsyncResult<UserBulkDeleteResult>> handler) {
+    int chunk = Math.min(DELETE_CHUNK_SIZE, limit - deleted);
+    String table = SqlUtil.table(tenantId, TABLE_NAME_USER);
+    String sql = "DELETE FROM " + table + " WHERE id IN (SELECT id FROM " + table + " WHERE " + where
+        + " LIMIT " + chunk + ") RETURNING 1";
+    SqlUtil.query(vertx, tenantId, sql, reply -> {
+      if(reply.failed()) {
+        handler.handle(Future.failedFuture(reply.cause()));
+        return;
+      }
+      int rows = reply.result().getNumRows();
+      if(rows > 0) {
+        UserCache.getInstance().invalidate(vertx, tenantId, null);
+      }
+      int total = deleted + rows;
+      if(rows < chunk) {
+        handler.handle(Future.succeededFuture(new UserBulkDeleteResult().withDeleted(total).withComplete(true)));
+      } else if(total >= limit) {
+        handler.handle(Future.succeededFuture(new UserBulkDeleteResult().withDeleted(total).withComplete(false)));
+      } else {
+        deleteChunks(vertx, tenantId, where, limit, total, handler);
+      }
+    });
+  }
+
+  @Validate
+  @Override
+  public void getUsersSearch(String q, int limit, String lang,
+          Map<String, String> okapiHeaders,
+          Handler<AsyncResult<Response>> resultHandler,
+          Context vertxContext) throws Exception {
+    Bulkhead.getInstance().execute(vertxContext, okapiHeaders.get(OKAPI_HEADER_TENANT), Bulkhead.Kind.TYPEAHEAD,
+        Metrics.getInstance().request("GET /users/search", okapiHeaders.get(OKAPI_HEADER_TENANT), resultHandler),
+        asyncResultHandler -> searchUsers(q, limit, lang, okapiHeaders, asyncResultHandler, vertxContext));
+  }
+
+  /**
+   * Type-ahead search with one statement. The prefix matches are read from each prefix
+   * index in index order and stop after limit users, so a one letter prefix that matches
+   * half of the users costs no more than a long one. Only if there are less than limit
+   * prefix matches the trigram index is searched for users containing all words.
+   */
+  private void searchUsers(String q, int limit, String lang,
+          Map<String, String> okapiHeaders,
+          Handler<AsyncResult<Response>> asyncResultHandler,
+          Context vertxContext) {
+    List<String> words = new ArrayList<>();
+    for(String word : q.toLowerCase(Locale.ROOT).trim().split("\\s+")) {
+      if(!word.isEmpty()) {
+        words.add(word);
+      }
+    }
+    if(words.isEmpty()) {
+      asyncResultHandler.handle(Future.succeededFuture(GetUsersSearchResponse.withPlainBadRequest(
+              "q must contain a word")));
+      return;
+    }
+    String tenantId = TenantTool.calculateTenantId(okapiHeaders.get(OKAPI_HEADER_TENANT));
+    String table = SqlUtil.table(tenantId, TABLE_NAME_USER);
+    String searchText = PostgresClient.convertToPsqlStandard(tenantId) + ".user_search_text(jsonb)";
+    JsonArray params = new JsonArray();
+    StringBuilder sql = new StringBuilder("WITH prefix AS (SELECT DISTINCT ON (id) id, jsonb, key FROM (");
+    for(int i = 0; i < SEARCH_FIELDS.length; i++) {
+      String key = SEARCH_FIELDS[i] + " COLLATE \"C\"";
+      sql.append(i == 0 ? "(" : " UNION ALL (").append("SELECT id, jsonb, ").append(SEARCH_FIELDS[i])
+          .append(" AS key FROM ").append(table).append(" WHERE ").append(key).append(" LIKE ?");
+      params.add(SqlUtil.likeEscape(words.get(0)) + "%");
+      for(String word : words.subList(1, words.size())) {
+        sql.append(" AND ").append(searchText).append(" LIKE ?");
+        params.add("%" + SqlUtil.likeEscape(word) + "%");
+      }
+      sql.append(" ORDER BY ").append(key).append(" LIMIT ").append(limit).append(')');
+    }
+    sql.append(") AS p ORDER BY id, key)");
+    boolean trigrams = true;
+    for(String word : words) {
+      trigrams &= word.length() >= MIN_TRIGRAM_WORD;
+    }
+    if(trigrams) {
+      sql.append(", contains AS (SELECT id, jsonb, ").append(SEARCH_FIELDS[0]).append(" AS key FROM ").append(table)
+          .append(" WHERE (SELECT count(*) FROM prefix) < ").append(limit);
+      for(String word : words) {
+        sql.append(" AND ").append(searchText).append(" LIKE ?");
+        params.add("%" + SqlUtil.likeEscape(word) + "%");
+      }
+      sql.append(" AND id NOT IN (SELECT id FROM prefix) LIMIT ").append(limit).append(')');
+    }
+    sql.append(" SELECT ").append(SEARCH_PROJECTION).append(" FROM (SELECT 0 AS rank, id, jsonb, key FROM prefix");
+    if(trigrams) {
+      sql.append(" UNION ALL SELECT 1, id, jsonb, key FROM contains");
+    }
+    sql.append(") AS r ORDER BY rank, key, id LIMIT ").append(limit);
+    Future<ResultSet> found = Future.future();
+    SqlUtil.query(vertxContext.owner(), tenantId, ReadReplica.use(okapiHeaders), sql.toString(), params,
+        Metrics.getInstance().timed(Metrics.Phase.DB, "GET /users/search", found.completer()));
+    found.<Response>map(result -> {
+      List<UserSearchResult> users = new ArrayList<>();
+      for(JsonArray row : result.getResults()) {
+        users.add(Json.decodeValue(row.getString(0), UserSearchResult.class));
+      }
+      return GetUsersSearchResponse.withJsonOK(new UserSearchResults().withUsers(users));
+    }).otherwise(e -> {
+      logger.error(e.getLocalizedMessage(), e);
+      return GetUsersSearchResponse.withPlainInternalServerError(
+              messages.getMessage(lang, MessageConsts.InternalServerError));
+    }).setHandler(asyncResultHandler);
+  }
+
+  @Validate
+  @Override
+  public void getUsersChanges(String since, int limit, String lang,
+          Map<String, String> okapiHeaders,
+          Handler<AsyncResult<Response>> resultHandler,
+          Context vertxContext) throws Exception {
+    Bulkhead.getInstance().execute(vertxContext, okapiHeaders.get(OKAPI_HEADER_TENANT), Bulkhead.Kind.SEARCH,
+        Metrics.getInstance().request("GET /users/changes", okapiHeaders.get(OKAPI_HEADER_TENANT), resultHandler),
+        asyncResultHandler -> findChanges(since, limit, lang, okapiHeaders, asyncResultHandler, vertxContext));
+  }
+
+  /**
+   * Read the change feed after a position. Only changes of transactions older than the
+   * oldest running transaction are returned: those that are still running may commit
+   * changes that sort before the changes returned, which the client would then miss.
+   */
+  private void findChanges(String since, int limit, String lang,
+          Map<String, String> okapiHeaders,
+          Handler<AsyncResult<Response>> asyncResultHandler,
+          Context vertxContext) {
+    ChangeCursor cursor;
+    try {
+      cursor = since == null ? ChangeCursor.START : ChangeCursor.decode(since);
+    } catch(IllegalArgumentException e) {
+      asyncResultHandler.handle(Future.succeededFuture(GetUsersChangesResponse.withPlainBadRequest(e.getMessage())));
+      return;
+    }
+    String tenantId = TenantTool.calculateTenantId(okapiHeaders.get(OKAPI_HEADER_TENANT));
+    String sql = "SELECT c.id, c.xid, c.seq, c.deleted, u.jsonb::text FROM "
+        + SqlUtil.table(tenantId, TABLE_NAME_CHANGES) + " c"
+        + " LEFT JOIN " + SqlUtil.table(tenantId, TABLE_NAME_USER) + " u ON NOT c.deleted AND u." + ID_EXPRESSION + " = c.id"
+        + " WHERE (c.xid, c.seq) > (?::bigint, ?::bigint) AND c.xid < txid_snapshot_xmin(txid_current_snapshot())"
+        + " ORDER BY c.xid, c.seq LIMIT " + limit;
+    JsonArray params = new JsonArray().add(cursor.getXid()).add(cursor.getSeq());
+    Future<ResultSet> found = Future.future();
+    SqlUtil.query(vertxContext.owner(), tenantId, sql, params,
+        Metrics.getInstance().timed(Metrics.Phase.DB, "GET /users/changes", found.completer()));
+    found.<Response>map(result -> {
+      List<JsonArray> rows = result.getResults();
+      List<UserChange> changes = new ArrayList<>(rows.size());
+      ChangeCursor next = cursor;
+      for(JsonArray row : rows) {
+        UserChange change = new UserChange().withId(row.getString(0)).withDeleted(row.getBoolean(3));
+        if(row.getString(4) != null) {
+          change.setUser(Json.decodeValue(row.getString(4), User.class));
+        }
+        changes.add(change);
+        next = new ChangeCursor(row.getLong(1), row.getLong(2));
+      }
+      return GetUsersChangesResponse.withJsonOK(new UserChanges().withChanges(changes).withNext(next.encode()));
+    }).otherwise(e -> {
+      logger.error(e.getLocalizedMessage(), e);
+      return GetUsersChangesResponse.withPlainInternalServerError(
+              messages.getMessage(lang, MessageConsts.InternalServerError));
+    }).setHandler(asyncResultHandler);
+  }
+
+  @Validate
+  @Override
+  public void postUsers(String lang, User entity,
+          Map<String, String> okapiHeaders,
+          Handler<AsyncResult<Response>> resultHandler,
+          Context vertxContext) throws Exception {
+    Handler<AsyncResult<Response>> asyncResultHandler = Metrics.getInstance().request(
+        "POST /users", okapiHeaders.get(OKAPI_HEADER_TENANT), resultHandler);
+    String tenantId = TenantTool.calculateTenantId(okapiHeaders.get(OKAPI_HEADER_TENANT));
+    Vertx vertx = vertxContext.owner();
+    getPG(vertx, tenantId, entity)
+      .compose(exists -> {
+        if(!exists) {
+          String message = "Can not add " + entity.getPatronGroup() + ". Patron group not found";
+          logger.error(message);
+          return Future.succeededFuture(PostUsersResponse.withPlainBadRequest(message));
+        }
+        return saveUser(vertx, tenantId, entity, lang);
+      })
+      .otherwise(e -> {
+        logger.error(e.getLocalizedMessage(), e);
+        return PostUsersResponse.withPlainInternalServerError(
+                messages.getMessage(lang, MessageConsts.InternalServerError));
+      })
+      .setHandler(asyncResultHandler);
+  }
 
+  /**
+   * Insert a user; duplicate ids and usernames are rejected by the unique indexes on the
+   * users table.
+   * @return the response to the POST, failed only if the insert could not be started
+   */
+  private Future<Response> saveUser(Vertx vertx, String tenantId, User entity, String lang) {
+    Future<Response> response = Future.future();
+    long start = System.nanoTime();
+    try {
+      SqlUtil.client(vertx, tenantId).save(TABLE_NAME_USER, entity, reply -> {
+        Metrics.getInstance().time(Metrics.Phase.DB, "POST /users", start);
+        if(reply.succeeded()) {
+          UserCache.getInstance().invalidate(vertx, tenantId, entity.getId());
+          OutStream stream = new OutStream();
+          stream.setData(entity);
+          response.complete(PostUsersResponse.withJsonCreated(reply.result(), stream));
+        } else if(SqlUtil.isDuplicate(reply.cause().getMessage())) {
+          logger.debug("User already exists: " + reply.cause().getMessage());
+          response.complete(PostUsersResponse.withJsonUnprocessableEntity(
+                  duplicateUserMessage(reply.cause().getMessage(), entity)));
+        } else {
+          logger.error(reply.cause().getMessage(), reply.cause());
+          response.complete(PostUsersResponse.withPlainBadRequest(
+                  messages.getMessage(lang, MessageConsts.UnableToProcessRequest)));
+        }
       });
     } catch(Exception e) {
-      asyncResultHandler.handle(Future.succeededFuture(
-              PostUsersResponse.withPlainInternalServerError(
-              messages.getMessage(lang, MessageConsts.InternalServerError))));
+      response.fail(e);
     }
+    return response;
   }
 
   @Validate
   @Override
-  public void getUsersByUserId(String userId, String lang,
+  public void getUsersByUserId(String userId, String ifNoneMatch, String accept, String lang,
+          Map<String, String> okapiHeaders,
+          Handler<AsyncResult<Response>> resultHandler,
+          Context vertxContext) throws Exception {
+    ResponseFormat format = ResponseFormat.negotiate(accept);
+    Bulkhead.getInstance().execute(vertxContext, okapiHeaders.get(OKAPI_HEADER_TENANT), Bulkhead.Kind.LOOKUP,
+        format.encoder("GET /users/{userId}",
+            Metrics.getInstance().request("GET /users/{userId}", okapiHeaders.get(OKAPI_HEADER_TENANT), resultHandler)),
+        asyncResultHandler -> findUser(userId, format.ifNoneMatch(ifNoneMatch), lang, okapiHeaders,
+            asyncResultHandler, vertxContext));
+  }
+
+  private void findUser(String userId, String ifNoneMatch, String lang,
           Map<String, String> okapiHeaders,
           Handler<AsyncResult<Response>> asyncResultHandler,
           Context vertxContext) throws Exception {
      try {
-      vertxContext.runOnContext(v -> {
-        String tenantId = TenantTool.calculateTenantId(okapiHeaders.get(OKAPI_HEADER_TENANT));
-        Criteria idCrit = new Criteria();
-        idCrit.addField(USER_ID_FIELD);
-        idCrit.setOperation("=");
-        idCrit.setValue(userId);
-        Criterion criterion = new Criterion(idCrit);
-        logger.debug("Using criterion: " + criterion.toString());
-        String tableName = getTableName(tenantId, TABLE_NAME_USER);
-
-            try {
-               PostgresClient.getInstance(vertxContext.owner(), tenantId).get(tableName, User.class, criterion,
-                       true, false, getReply -> {
-                 if(getReply.failed()) {
-                   asyncResultHandler.handle(Future.succeededFuture(
-                           GetUsersByUserIdResponse.withPlainInternalServerError(
-                                   messages.getMessage(lang, MessageConsts.InternalServerError))));
-                 } else {
-                   List<User> userList = (List<User>)getReply.result()[0];
-                   if(userList.size() < 1) {
-                     asyncResultHandler.handle(Future.succeededFuture(
-                            GetUsersByUserIdResponse.withPlainNotFound("User" +
-                                    messages.getMessage(lang,
-                                            MessageConsts.ObjectDoesNotExist))));
-                   } else if(userList.size() > 1) {
-                     logger.debug("Multiple users found with the same id");
-                     asyncResultHandler.handle(Future.succeededFuture(
-                          GetUsersByUserIdResponse.withPlainInternalServerError(
-                                  messages.getMessage(lang,
-                                          MessageConsts.InternalServerError))));
-                   } else {
-                     asyncResultHandler.handle(Future.succeededFuture(
-                            GetUsersByUserIdResponse.withJsonOK(userList.get(0))));
-                   }
-                 }
-               });
-             } catch(Exception e) {
-               logger.debug("Error occurred: " + e.getMessage());
-               asyncResultHandler.handle(Future.succeededFuture(
-                      GetUsersResponse.withPlainInternalServerError(messages.getMessage(
-                              lang, MessageConsts.InternalServerError))));
-             }
-
-       });
+      String tenantId = TenantTool.calculateTenantId(okapiHeaders.get(OKAPI_HEADER_TENANT));
+      UserCache cache = UserCache.getInstance();
+      /* a strong read has to see writes of other instances that did not reach this one yet */
+      if(!ReadReplica.isStrong(okapiHeaders)) {
+        UserCache.Entry cached = cache.get(tenantId, userId);
+        if(cached != null) {
+          asyncResultHandler.handle(Future.succeededFuture(ETag.matches(ifNoneMatch, cached.getTag())
+              ? GetUsersByUserIdResponse.withNotModified(ETag.quote(cached.getTag()))
+              : GetUsersByUserIdResponse.withJsonOK(ETag.quote(cached.getTag()), cached.getUser())));
+          return;
+        }
+      }
+      long generation = cache.generation(tenantId);
+      /* the ETag is the hash of the stored JSON; if the client has it already the JSON
+         is not sent by the database, let alone decoded and encoded again */
+      String sql = "SELECT tag, CASE WHEN tag = ANY(?::text[]) THEN NULL ELSE jsonb END FROM"
+          + " (SELECT md5(jsonb::text) AS tag, jsonb::text AS jsonb FROM " + SqlUtil.table(tenantId, TABLE_NAME_USER)
+          + " WHERE " + ID_EXPRESSION + " = ?) AS u";
+      JsonArray params = new JsonArray().add(SqlUtil.textArray(ETag.parse(ifNoneMatch))).add(userId);
+      boolean replica = ReadReplica.use(okapiHeaders);
+      long start = System.nanoTime();
+      SqlUtil.query(vertxContext.owner(), tenantId, replica, sql, params, getReply -> {
+        Metrics.getInstance().time(Metrics.Phase.DB, "GET /users/{userId}", start);
+        try {
+          if(getReply.failed()) {
+            logger.error(getReply.cause().getLocalizedMessage(), getReply.cause());
+            asyncResultHandler.handle(Future.succeededFuture(
+                    GetUsersByUserIdResponse.withPlainInternalServerError(
+                            messages.getMessage(lang, MessageConsts.InternalServerError))));
+            return;
+          }
+          List<JsonArray> rows = getReply.result().getResults();
+          if(rows.isEmpty()) {
+            asyncResultHandler.handle(Future.succeededFuture(
+                   GetUsersByUserIdResponse.withPlainNotFound("User" +
+                           messages.getMessage(lang,
+                                   MessageConsts.ObjectDoesNotExist))));
+            return;
+          }
+          String tag = rows.get(0).getString(0);
+          if(ETag.matches(ifNoneMatch, tag)) {
+            asyncResultHandler.handle(Future.succeededFuture(
+                   GetUsersByUserIdResponse.withNotModified(ETag.quote(tag))));
+            return;
+          }
+          long decodeStart = System.nanoTime();
+          User user = Json.decodeValue(rows.get(0).getString(1), User.class);
+          Metrics.getInstance().time(Metrics.Phase.SERIALIZATION, "GET /users/{userId}", decodeStart);
+          /* a replica may lag behind an invalidation: the generation check can not tell
+             whether its row predates a write, so only rows of the primary are cached */
+          if(!replica) {
+            cache.put(tenantId, userId, tag, user, generation);
+          }
+          asyncResultHandler.handle(Future.succeededFuture(
+                 GetUsersByUserIdResponse.withJsonOK(ETag.quote(tag), user)));
+        } catch(Exception e) {
+          logger.error(e.getLocalizedMessage(), e);
+          asyncResultHandler.handle(Future.succeededFuture(
+                 GetUsersByUserIdResponse.withPlainInternalServerError(messages.getMessage(
+                         lang, MessageConsts.InternalServerError))));
+        }
+      });
     } catch(Exception e) {
       asyncResultHandler.handle(Future.succeededFuture(
               GetUsersResponse.withPlainInternalServerError(messages.getMessage(
@@ -336,45 +868,35 @@ public class UsersAPI implements UsersResource {
   @Override
   public void deleteUsersByUserId(String userId, String lang,
           Map<String, String> okapiHeaders,
-          Handler<AsyncResult<Response>> asyncResultHandler,
+          Handler<AsyncResult<Response>> resultHandler,
           Context vertxContext) throws Exception {
+    Handler<AsyncResult<Response>> asyncResultHandler = Metrics.getInstance().request(
+        "DELETE /users/{userId}", okapiHeaders.get(OKAPI_HEADER_TENANT), resultHandler);
+    String tenantId = TenantTool.calculateTenantId(okapiHeaders.get(OKAPI_HEADER_TENANT));
+    Criteria idCrit = new Criteria();
+    idCrit.addField(USER_ID_FIELD);
+    idCrit.setOperation("=");
+    idCrit.setValue(userId);
     try {
-      vertxContext.runOnContext(v-> {
-        String tenantId = TenantTool.calculateTenantId(okapiHeaders.get(OKAPI_HEADER_TENANT));
-        Criteria idCrit = new Criteria();
-        idCrit.addField(USER_ID_FIELD);
-        idCrit.setOperation("=");
-        idCrit.setValue(userId);
-        String tableName = getTableName(tenantId, TABLE_NAME_USER);
-
-            try {
-              PostgresClient.getInstance(vertxContext.owner(), tenantId).delete(
-                      tableName, new Criterion(idCrit), deleteReply -> {
-                if(deleteReply.failed()) {
-                  logger.debug("Delete failed: " + deleteReply.cause().getMessage());
-                  asyncResultHandler.handle(Future.succeededFuture(
-                            DeleteUsersByUserIdResponse.withPlainNotFound("Not found")));
-                } else {
-                   asyncResultHandler.handle(Future.succeededFuture(
-                            DeleteUsersByUserIdResponse.withNoContent()));
-                }
-              });
-            } catch(Exception e) {
-              logger.debug("Delete failed: " + e.getMessage());
-              asyncResultHandler.handle(
-                Future.succeededFuture(
-                        DeleteUsersByUserIdResponse.withPlainInternalServerError(
-                                messages.getMessage(lang,
-                                        MessageConsts.InternalServerError))));
-            }
-
+      long start = System.nanoTime();
+      SqlUtil.client(vertxContext.owner(), tenantId).delete(
+              TABLE_NAME_USER, new Criterion(idCrit), deleteReply -> {
+        Metrics.getInstance().time(Metrics.Phase.DB, "DELETE /users/{userId}", start);
+        if(deleteReply.failed()) {
+          logger.debug("Delete failed: " + deleteReply.cause().getMessage());
+          asyncResultHandler.handle(Future.succeededFuture(
+                  DeleteUsersByUserIdResponse.withPlainNotFound("Not found")));
+        } else {
+          UserCache.getInstance().invalidate(vertxContext.owner(), tenantId, userId);
+          asyncResultHandler.handle(Future.succeededFuture(
+                  DeleteUsersByUserIdResponse.withNoContent()));
+        }
       });
     } catch(Exception e) {
-      asyncResultHandler.handle(
-            Future.succeededFuture(
-                    DeleteUsersByUserIdResponse.withPlainInternalServerError(
-                            messages.getMessage(lang,
-                                    MessageConsts.InternalServerError))));
+      logger.debug("Delete failed: " + e.getMessage());
+      asyncResultHandler.handle(Future.succeededFuture(
+              DeleteUsersByUserIdResponse.withPlainInternalServerError(
+                      messages.getMessage(lang, MessageConsts.InternalServerError))));
     }
   }
 
@@ -383,150 +905,413 @@ public class UsersAPI implements UsersResource {
   public void putUsersByUserId(String userId,
           String lang, User entity,
           Map<String, String> okapiHeaders,
-          Handler<AsyncResult<Response>> asyncResultHandler,
+          Handler<AsyncResult<Response>> resultHandler,
           Context vertxContext) throws Exception {
-
-
+    Handler<AsyncResult<Response>> asyncResultHandler = Metrics.getInstance().request(
+        "PUT /users/{userId}", okapiHeaders.get(OKAPI_HEADER_TENANT), resultHandler);
+    if(!userId.equals(entity.getId())) {
+      asyncResultHandler.handle(Future.succeededFuture(
+              PutUsersByUserIdResponse.withPlainBadRequest("You cannot change the value of the id field")));
+      return;
+    }
     try {
-      vertxContext.runOnContext(v-> {
-        if(!userId.equals(entity.getId())) {
-          asyncResultHandler.handle(Future.succeededFuture(
-                          PutUsersByUserIdResponse.withPlainBadRequest("You cannot change the value of the id field")));
-        } else {
-          String tenantId = TenantTool.calculateTenantId(okapiHeaders.get(OKAPI_HEADER_TENANT));
-          String tableName = getTableName(tenantId, TABLE_NAME_USER);
-          Criteria nameCrit = new Criteria();
-          nameCrit.addField(USER_NAME_FIELD);
-          nameCrit.setOperation("=");
-          nameCrit.setValue(entity.getUsername());
-
-          try {
-            PostgresClient.getInstance(vertxContext.owner(), tenantId).get(tableName,
-                    User.class, new Criterion(nameCrit), true, false, getReply -> {
-              if(getReply.failed()) {
-                //error 500
-                logger.debug("Error querying existing username: " + getReply.cause().getLocalizedMessage());
-                asyncResultHandler.handle(Future.succeededFuture(
-                                        PutUsersByUserIdResponse.withPlainInternalServerError(
-                                                messages.getMessage(lang,
-                                                        MessageConsts.InternalServerError))));
-              } else {
-                List<User> userList = (List<User>)getReply.result()[0];
-                if(userList.size() > 0 && (!userList.get(0).getId().equals(entity.getId()))) {
-                  //Error 400, that username is in use by somebody else
-                  asyncResultHandler.handle(Future.succeededFuture(
-                          PutUsersByUserIdResponse.withPlainBadRequest(
-                                  "Username " + entity.getUsername() + " is already in use")));
-                } else {
-                  try {
-                    getPG(vertxContext.owner(), tenantId, entity, handler -> {
-
-                      int res = handler.result();
-                      if(res == 0){
-                        String message = "Can not add " + entity.getPatronGroup() + ". Patron group not found";
-                        logger.error(message);
-                        asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(PostUsersResponse
-                          .withPlainBadRequest(message)));
-                        return;
-                      }
-                      else if(res == -1){
-                        asyncResultHandler.handle(Future.succeededFuture(
-                          PostUsersResponse
-                            .withPlainInternalServerError("")));
-                        return;
-                      }
-                      else{
-                        Criteria idCrit = new Criteria();
-                        idCrit.addField(USER_ID_FIELD);
-                        idCrit.setOperation("=");
-                        idCrit.setValue(userId);
-                        try {
-                          PostgresClient.getInstance(vertxContext.owner(), tenantId).update(
-                                  tableName, entity, new Criterion(idCrit), true, putReply -> {
-                            try {
-                              if(putReply.failed()) {
-                                asyncResultHandler.handle(Future.succeededFuture(
-                                        PutUsersByUserIdResponse.withPlainInternalServerError(putReply.cause().getMessage())));
-                              } else {
-                                asyncResultHandler.handle(Future.succeededFuture(
-                                        PutUsersByUserIdResponse.withNoContent()));
-                              }
-                            } catch(Exception e) {
-                              asyncResultHandler.handle(Future.succeededFuture(
-                                              PutUsersByUserIdResponse.withPlainInternalServerError(
-                                                      messages.getMessage(lang,
-                                                              MessageConsts.InternalServerError))));
-                            }
-                          });
-                        } catch(Exception e) {
-                          asyncResultHandler.handle(Future.succeededFuture(
-                                              PutUsersByUserIdResponse.withPlainInternalServerError(
-                                                      messages.getMessage(lang,
-                                                              MessageConsts.InternalServerError))));
-                        }
-                      }
-                    });
-                  } catch (Exception e) {
-                    logger.error(e.getLocalizedMessage(), e);
-                    asyncResultHandler.handle(Future.succeededFuture(
-                      PutUsersByUserIdResponse.withPlainInternalServerError(
-                              messages.getMessage(lang, MessageConsts.InternalServerError))));
-                  }
-                }
-              }
-            });
-          } catch(Exception e) {
-            logger.debug(e.getLocalizedMessage());
+      String tenantId = TenantTool.calculateTenantId(okapiHeaders.get(OKAPI_HEADER_TENANT));
+      String table = SqlUtil.table(tenantId, TABLE_NAME_USER);
+      String pgId = entity.getPatronGroup() == null ? null : entity.getPatronGroup().toLowerCase();
+      /* one statement checks the patron group and the version and writes the user. The
+         version is compared with the row being updated, so a concurrent update that
+         commits first makes this one match no row instead of being overwritten. A
+         username already used by somebody else violates the unique username index. */
+      String sql = "WITH target AS (SELECT id FROM " + table + " WHERE " + ID_EXPRESSION + " = ?),"
+          + " patron_group AS (SELECT ?::text IS NULL OR EXISTS (SELECT 1 FROM "
+          + SqlUtil.table(tenantId, UserGroupAPI.GROUP_TABLE) + " WHERE id::text = ?) AS ok),"
+          + " updated AS (UPDATE " + table + " u SET jsonb = ?::jsonb FROM target t, patron_group g"
+          + " WHERE u.id = t.id AND g.ok AND (?::int IS NULL OR (u.jsonb->>'" + VERSION_FIELD + "')::int = ?)"
+          + " RETURNING u.id)"
+          + " SELECT (SELECT count(*) FROM target), g.ok, (SELECT count(*) FROM updated) FROM patron_group g";
+      JsonArray params = new JsonArray().add(userId);
+      addNullable(params, pgId);
+      addNullable(params, pgId);
+      params.add(PostgresClient.pojo2json(entity));
+      addNullable(params, entity.getVersion());
+      addNullable(params, entity.getVersion());
+      long start = System.nanoTime();
+      SqlUtil.query(vertxContext.owner(), tenantId, sql, params, putReply -> {
+        Metrics.getInstance().time(Metrics.Phase.DB, "PUT /users/{userId}", start);
+        if(putReply.failed()) {
+          if(SqlUtil.isDuplicate(putReply.cause().getMessage())) {
+            //Error 400, that username is in use by somebody else
             asyncResultHandler.handle(Future.succeededFuture(
-              PutUsersByUserIdResponse.withPlainInternalServerError(
-                      messages.getMessage(lang, MessageConsts.InternalServerError))));
+                    PutUsersByUserIdResponse.withPlainBadRequest(
+                            "Username " + entity.getUsername() + " is already in use")));
+            return;
           }
+          logger.error(putReply.cause().getLocalizedMessage(), putReply.cause());
+          asyncResultHandler.handle(Future.succeededFuture(
+                  PutUsersByUserIdResponse.withPlainInternalServerError(
+                          messages.getMessage(lang, MessageConsts.InternalServerError))));
+          return;
+        }
+        JsonArray row = putReply.result().getResults().get(0);
+        if(row.getLong(2) > 0) {
+          UserCache.getInstance().invalidate(vertxContext.owner(), tenantId, userId);
+        }
+        if(row.getLong(0) == 0) {
+          asyncResultHandler.handle(Future.succeededFuture(
+                  PutUsersByUserIdResponse.withPlainNotFound("User" +
+                          messages.getMessage(lang, MessageConsts.ObjectDoesNotExist))));
+        } else if(!row.getBoolean(1)) {
+          String message = "Can not add " + entity.getPatronGroup() + ". Patron group not found";
+          logger.error(message);
+          asyncResultHandler.handle(Future.succeededFuture(
+                  PutUsersByUserIdResponse.withPlainBadRequest(message)));
+        } else if(row.getLong(2) == 0 && entity.getVersion() != null) {
+          asyncResultHandler.handle(Future.succeededFuture(
+                  PutUsersByUserIdResponse.withPlainConflict(staleVersion(entity.getVersion()))));
+        } else if(row.getLong(2) == 0) {
+          /* deleted after the target was read */
+          asyncResultHandler.handle(Future.succeededFuture(
+                  PutUsersByUserIdResponse.withPlainNotFound("User" +
+                          messages.getMessage(lang, MessageConsts.ObjectDoesNotExist))));
+        } else {
+          asyncResultHandler.handle(Future.succeededFuture(
+                  PutUsersByUserIdResponse.withNoContent()));
         }
       });
     } catch (Exception e) {
-      logger.debug(e.getLocalizedMessage());
+      logger.error(e.getLocalizedMessage(), e);
       asyncResultHandler.handle(Future.succeededFuture(
               PutUsersByUserIdResponse.withPlainInternalServerError(
                       messages.getMessage(lang, MessageConsts.InternalServerError))));
     }
   }
 
+  private static void addNullable(JsonArray params, Object value) {
+    if(value == null) {
+      params.addNull();
+    } else {
+      params.add(value);
+    }
+  }
+
+  private static String staleVersion(Integer version) {
+    return "Version " + version + " of the user is not the current version, it has been changed by somebody else";
+  }
+
+  @Validate
+  @Override
+  public void patchUsersByUserId(String userId, String lang, UserPatch entity,
+          Map<String, String> okapiHeaders,
+          Handler<AsyncResult<Response>> resultHandler,
+          Context vertxContext) throws Exception {
+    Handler<AsyncResult<Response>> asyncResultHandler = Metrics.getInstance().request(
+        "PATCH /users/{userId}", okapiHeaders.get(OKAPI_HEADER_TENANT), resultHandler);
+    JsonObject patch;
+    try {
+      patch = MergePatch.normalize(new JsonObject(entity.getAdditionalProperties()), User.class);
+    } catch(DecodeException e) {
+      asyncResultHandler.handle(Future.succeededFuture(
+              PatchUsersByUserIdResponse.withPlainBadRequest(e.getLocalizedMessage())));
+      return;
+    }
+    if(patch.containsKey("id") && !userId.equals(patch.getString("id"))) {
+      asyncResultHandler.handle(Future.succeededFuture(
+              PatchUsersByUserIdResponse.withPlainBadRequest("You cannot change the value of the id field")));
+      return;
+    }
+    String tenantId = TenantTool.calculateTenantId(okapiHeaders.get(OKAPI_HEADER_TENANT));
+    String pgId = patch.getString("patronGroup");
+    /* only a patch that sets the patron group needs the group check */
+    if(pgId == null) {
+      patchUser(vertxContext.owner(), tenantId, userId, patch, lang, asyncResultHandler);
+      return;
+    }
+    PatronGroupCache.getInstance().exists(vertxContext.owner(), tenantId, pgId, exists -> {
+      if(exists.failed()) {
+        logger.error(exists.cause().getLocalizedMessage(), exists.cause());
+        asyncResultHandler.handle(Future.succeededFuture(PatchUsersByUserIdResponse.withPlainInternalServerError(
+                messages.getMessage(lang, MessageConsts.InternalServerError))));
+      } else if(!exists.result()) {
+        String message = "Can not add " + pgId + ". Patron group not found";
+        logger.error(message);
+        asyncResultHandler.handle(Future.succeededFuture(PatchUsersByUserIdResponse.withPlainBadRequest(message)));
+      } else {
+        patchUser(vertxContext.owner(), tenantId, userId, patch, lang, asyncResultHandler);
+      }
+    });
+  }
+
+  /**
+   * Apply a merge patch to a user with one statement: the row is locked and merged by
+   * jsonb_merge_patch, and only written if the patch changes it and the result still has
+   * personal.lastName. A username already used by somebody else violates the unique
+   * username index.
+   */
+  private void patchUser(Vertx vertx, String tenantId, String userId, JsonObject patch, String lang,
+          Handler<AsyncResult<Response>> asyncResultHandler) {
+    String table = SqlUtil.table(tenantId, TABLE_NAME_USER);
+    String sql = "WITH target AS (SELECT id, jsonb AS old, "
+        + PostgresClient.convertToPsqlStandard(tenantId) + ".jsonb_merge_patch(jsonb, ?::jsonb) AS merged"
+        + " FROM " + table + " WHERE " + ID_EXPRESSION + " = ? FOR UPDATE),"
+        + " valid AS (SELECT id, old, merged, merged->'personal' IS NULL"
+        + " OR merged->'personal'->>'lastName' IS NOT NULL AS ok,"
+        + " ?::int IS NOT NULL AND (old->>'" + VERSION_FIELD + "')::int IS DISTINCT FROM ? AS stale FROM target),"
+        + " updated AS (UPDATE " + table + " u SET jsonb = v.merged FROM valid v"
+        + " WHERE u.id = v.id AND v.ok AND NOT v.stale AND v.old <> v.merged RETURNING u.id)"
+        + " SELECT ok, stale FROM valid";
+    Integer version = patch.getInteger(VERSION_FIELD);
+    JsonArray params = new JsonArray().add(patch.encode()).add(userId);
+    addNullable(params, version);
+    addNullable(params, version);
+    long start = System.nanoTime();
+    SqlUtil.query(vertx, tenantId, sql, params, reply -> {
+      Metrics.getInstance().time(Metrics.Phase.DB, "PATCH /users/{userId}", start);
+      if(reply.failed()) {
+        if(SqlUtil.isDuplicate(reply.cause().getMessage())) {
+          asyncResultHandler.handle(Future.succeededFuture(PatchUsersByUserIdResponse.withPlainBadRequest(
+                  "Username " + patch.getString("username") + " is already in use")));
+          return;
+        }
+        logger.error(reply.cause().getLocalizedMessage(), reply.cause());
+        asyncResultHandler.handle(Future.succeededFuture(PatchUsersByUserIdResponse.withPlainInternalServerError(
+                messages.getMessage(lang, MessageConsts.InternalServerError))));
+        return;
+      }
+      List<JsonArray> rows = reply.result().getResults();
+      if(rows.isEmpty()) {
+        asyncResultHandler.handle(Future.succeededFuture(PatchUsersByUserIdResponse.withPlainNotFound(
+                "User" + messages.getMessage(lang, MessageConsts.ObjectDoesNotExist))));
+      } else if(rows.get(0).getBoolean(1)) {
+        asyncResultHandler.handle(Future.succeededFuture(PatchUsersByUserIdResponse.withPlainConflict(
+                staleVersion(version))));
+      } else if(!rows.get(0).getBoolean(0)) {
+        asyncResultHandler.handle(Future.succeededFuture(PatchUsersByUserIdResponse.withPlainBadRequest(
+                "personal.lastName is required")));
+      } else {
+        UserCache.getInstance().invalidate(vertx, tenantId, userId);
+        asyncResultHandler.handle(Future.succeededFuture(PatchUsersByUserIdResponse.withNoContent()));
+      }
+    });
+  }
+
+  @Validate
+  @Override
+  public void postUsersBatch(String lang, UserdataCollection entity,
+          Map<String, String> okapiHeaders,
+          Handler<AsyncResult<Response>> resultHandler,
+          Context vertxContext) throws Exception {
+    Handler<AsyncResult<Response>> asyncResultHandler = Metrics.getInstance().request(
+        "POST /users/batch", okapiHeaders.get(OKAPI_HEADER_TENANT), resultHandler);
+    List<User> users = entity.getUsers();
+    if(users.size() > MAX_BATCH_SIZE) {
+      asyncResultHandler.handle(Future.succeededFuture(PostUsersBatchResponse.withPlainBadRequest(
+              "A batch can not contain more than " + MAX_BATCH_SIZE + " users")));
+      return;
+    }
+    try {
+      String tenantId = TenantTool.calculateTenantId(okapiHeaders.get(OKAPI_HEADER_TENANT));
+      List<UserdataBatchResult> results = new ArrayList<>(users.size());
+      Set<String> ids = new HashSet<>();
+      Set<String> usernames = new HashSet<>();
+      Set<String> groupIds = new HashSet<>();
+      for(User user : users) {
+        UserdataBatchResult result = new UserdataBatchResult();
+        result.setId(user.getId());
+        result.setUsername(user.getUsername());
+        results.add(result);
+        boolean newId = ids.add(user.getId());
+        boolean newUsername = usernames.add(user.getUsername().toLowerCase());
+        if(!newId || !newUsername) {
+          failed(result, "Duplicate id or username within the batch");
+        } else if(user.getPatronGroup() != null) {
+          groupIds.add(user.getPatronGroup().toLowerCase());
+        }
+      }
+      Vertx vertx = vertxContext.owner();
+      Future<Set<String>> groups = Future.future();
+      PatronGroupCache.getInstance().existing(vertx, tenantId, groupIds, groups.completer());
+      groups.<Void>compose(existing -> {
+        List<Integer> pending = new ArrayList<>();
+        for(int i = 0; i < users.size(); i++) {
+          String pgId = users.get(i).getPatronGroup();
+          if(results.get(i).getStatus() != null) {
+            continue;
+          }
+          if(pgId != null && !existing.contains(pgId.toLowerCase())) {
+            failed(results.get(i), "Can not add " + pgId + ". Patron group not found");
+          } else {
+            pending.add(i);
+          }
+        }
+        Future<Void> inserted = Future.future();
+        insertBatch(vertx, tenantId, users, results, pending, 0, inserted.completer());
+        return inserted;
+      }).<Response>map(v -> {
+        UserdataBatchResponse response = new UserdataBatchResponse();
+        int created = 0;
+        for(UserdataBatchResult result : results) {
+          if(BATCH_CREATED.equals(result.getStatus())) {
+            created++;
+          }
+        }
+        response.setResults(results);
+        response.setCreated(created);
+        response.setFailed(results.size() - created);
+        return PostUsersBatchResponse.withJsonOK(response);
+      }).otherwise(e -> {
+        logger.error(e.getLocalizedMessage(), e);
+        return PostUsersBatchResponse.withPlainInternalServerError(
+                messages.getMessage(lang, MessageConsts.InternalServerError));
+      }).setHandler(asyncResultHandler);
+    } catch(Exception e) {
+      logger.error(e.getLocalizedMessage(), e);
+      asyncResultHandler.handle(Future.succeededFuture(PostUsersBatchResponse.withPlainInternalServerError(
+              messages.getMessage(lang, MessageConsts.InternalServerError))));
+    }
+  }
+
   /**
-  *
-  * @param vertx
-  * @param tenantId
-  * @param item
-  * @param handler
-  * @throws Exception
+   * Insert the pending users of a batch, BATCH_CHUNK_SIZE users per multi-row INSERT.
+   * ON CONFLICT DO NOTHING skips users whose id or username is taken; the users that were
+   * inserted are the ones whose id comes back from RETURNING.
+   * @param pending - indexes into users of the records still to be inserted
+   * @param from - position in pending of the first record of the chunk
+   */
+  private void insertBatch(Vertx vertx, String tenantId, List<User> users,
+          List<UserdataBatchResult> results, List<Integer> pending, int from,
+          Handler<AsyncResult<Void>> done) {
+    if(from >= pending.size()) {
+      done.handle(Future.succeededFuture());
+      return;
+    }
+    List<Integer> chunk = pending.subList(from, Math.min(from + BATCH_CHUNK_SIZE, pending.size()));
+    StringBuilder sql = new StringBuilder("INSERT INTO ")
+        .append(SqlUtil.table(tenantId, TABLE_NAME_USER)).append(" (jsonb) VALUES ");
+    JsonArray params = new JsonArray();
+    try {
+      long encodeStart = System.nanoTime();
+      for(int i = 0; i < chunk.size(); i++) {
+        sql.append(i == 0 ? "(?::jsonb)" : ", (?::jsonb)");
+        params.add(PostgresClient.pojo2json(users.get(chunk.get(i))));
+      }
+      Metrics.getInstance().time(Metrics.Phase.SERIALIZATION, "POST /users/batch", encodeStart);
+    } catch(Exception e) {
+      logger.error(e.getLocalizedMessage(), e);
+      for(Integer i : chunk) {
+        failed(results.get(i), e.getLocalizedMessage());
+      }
+      insertBatch(vertx, tenantId, users, results, pending, from + chunk.size(), done);
+      return;
+    }
+    sql.append(" ON CONFLICT DO NOTHING RETURNING jsonb->>'id'");
+    long start = System.nanoTime();
+    SqlUtil.query(vertx, tenantId, sql.toString(), params, reply -> {
+      Metrics.getInstance().time(Metrics.Phase.DB, "POST /users/batch", start);
+      if(reply.failed()) {
+        logger.error(reply.cause().getLocalizedMessage(), reply.cause());
+        for(Integer i : chunk) {
+          failed(results.get(i), reply.cause().getLocalizedMessage());
+        }
+      } else {
+        Set<String> inserted = new HashSet<>();
+        for(JsonArray row : reply.result().getResults()) {
+          inserted.add(row.getString(0));
+        }
+        if(!inserted.isEmpty()) {
+          /* one invalidation per chunk instead of one message per user, as for POST /users
+             an instance may still have an earlier user with the same id */
+          UserCache.getInstance().invalidate(vertx, tenantId, null);
+        }
+        for(Integer i : chunk) {
+          if(inserted.contains(users.get(i).getId())) {
+            results.get(i).setStatus(BATCH_CREATED);
+          } else {
+            failed(results.get(i), "User with this id or username already exists");
+          }
+        }
+      }
+      insertBatch(vertx, tenantId, users, results, pending, from + chunk.size(), done);
+    });
+  }
+
+  @Validate
+  @Override
+  public void postUsersLookup(String lang, UserLookupRequest entity,
+          Map<String, String> okapiHeaders,
+          Handler<AsyncResult<Response>> resultHandler,
+          Context vertxContext) throws Exception {
+    Bulkhead.getInstance().execute(vertxContext, okapiHeaders.get(OKAPI_HEADER_TENANT), Bulkhead.Kind.LOOKUP,
+        Metrics.getInstance().request("POST /users/lookup", okapiHeaders.get(OKAPI_HEADER_TENANT), resultHandler),
+        asyncResultHandler -> lookupUsers(lang, entity, okapiHeaders, asyncResultHandler, vertxContext));
+  }
+
+  private void lookupUsers(String lang, UserLookupRequest entity,
+          Map<String, String> okapiHeaders,
+          Handler<AsyncResult<Response>> asyncResultHandler,
+          Context vertxContext) throws Exception {
+    String tenantId = TenantTool.calculateTenantId(okapiHeaders.get(OKAPI_HEADER_TENANT));
+    List<String> ids = entity.getIds();
+    /* one statement for any number of ids: they are passed as a single array parameter */
+    String sql = "SELECT jsonb::text FROM " + SqlUtil.table(tenantId, TABLE_NAME_USER)
+        + " WHERE " + ID_EXPRESSION + " = ANY(?::text[])";
+    JsonArray params = new JsonArray().add(SqlUtil.textArray(new HashSet<>(ids)));
+    Future<ResultSet> rows = Future.future();
+    SqlUtil.query(vertxContext.owner(), tenantId, sql, params,
+        Metrics.getInstance().timed(Metrics.Phase.DB, "POST /users/lookup", rows.completer()));
+    rows.<Response>map(result -> {
+      long decodeStart = System.nanoTime();
+      Map<String, User> users = new HashMap<>();
+      for(JsonArray row : result.getResults()) {
+        User user = Json.decodeValue(row.getString(0), User.class);
+        users.put(user.getId(), user);
+      }
+      Metrics.getInstance().time(Metrics.Phase.SERIALIZATION, "POST /users/lookup", decodeStart);
+      List<UserLookupResult> results = new ArrayList<>(ids.size());
+      int found = 0;
+      for(String id : ids) {
+        User user = users.get(id);
+        if(user != null) {
+          found++;
+        }
+        results.add(new UserLookupResult().withId(id).withFound(user != null).withUser(user));
+      }
+      return PostUsersLookupResponse.withJsonOK(
+          new UserLookupResponse().withResults(results).withFound(found).withNotFound(ids.size() - found));
+    }).otherwise(e -> {
+      logger.error(e.getLocalizedMessage(), e);
+      return PostUsersLookupResponse.withPlainInternalServerError(
+              messages.getMessage(lang, MessageConsts.InternalServerError));
+    }).setHandler(asyncResultHandler);
+  }
+
+  private static void failed(UserdataBatchResult result, String message) {
+    result.setStatus(BATCH_FAILED);
+    result.setMessage(message);
+  }
+
+  /**
+  * Check that the patron group of the user exists, using the tenant's cached group ids
+  * so that the common case costs no database round trip.
+  * @return true if the group exists or the user has none, failed if the check failed
   */
- private void getPG(Vertx vertx, String tenantId, User user, Handler<AsyncResult<Integer>> handler) throws Exception{
-   String pgId = user.getPatronGroup();
-   if(pgId == null){
+ private Future<Boolean> getPG(Vertx vertx, String tenantId, User user) {
+   Future<Boolean> exists = Future.future();
+   if(user.getPatronGroup() == null){
      //allow null patron groups so that they can be added after a record is created
-     handler.handle(io.vertx.core.Future.succeededFuture(1));
+     exists.complete(true);
    }else{
-     Criterion c = new Criterion(
-       new Criteria().addField(UserGroupAPI.ID_FIELD_NAME).setJSONB(false).
-       setOperation("=").setValue("'"+pgId+"'"));
-     /** check if the patron group exists, if not, can not add the user **/
-     PostgresClient.getInstance(vertx, tenantId).get(
-       UserGroupAPI.GROUP_TABLE, Usergroup.class, c, true, false, check -> {
-         if(check.succeeded()){
-           List<Usergroup> ug = (List<Usergroup>) check.result()[0];
-           if(ug.size() == 0){
-             handler.handle(io.vertx.core.Future.succeededFuture(0));
-           }
-           else{
-             handler.handle(io.vertx.core.Future.succeededFuture(1));
-           }
-         }
-         else{
-           logger.error(check.cause().getLocalizedMessage(), check.cause());
-           handler.handle(io.vertx.core.Future.succeededFuture(-1));
-         }
-     });
+     PatronGroupCache.getInstance().exists(vertx, tenantId, user.getPatronGroup(), exists.completer());
    }
+   return exists;
  }
 
-}
+  private Errors duplicateUserMessage(String errorMessage, User user){
+    if(errorMessage.contains(USERNAME_UNIQUE_INDEX)){
+      return ValidationHelper.createValidationErrorMessage(
+        USER_NAME_FIELD, user.getUsername(), "User with this username already exists");
+    }
+    return ValidationHelper.createValidationErrorMessage(
+      USER_ID_FIELD, user.getId(), "User with this id already exists");
+  }
 
+}
@@ -0,0 +1,188 @@
+package org.folio.rest.utils;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * Per tenant limits of the read requests that run at the same time, so that one tenant's
+ * expensive searches can not take all database connections and make the requests of the
+ * other tenants wait.
+ *
+ * Point lookups, type-ahead searches and searches have separate limits, so that one kind
+ * can not slow down the others of the same tenant either. A request over the limit waits
+ * in a queue of bounded length; when the queue is full the request is rejected with 503
+ * and a Retry-After header. A request that has not answered after the timeout of its kind gets
+ * 500 and gives up its slot, so that a request that lost its response can not hold a slot
+ * for good. The limits are set by the system properties bulkhead.&lt;kind&gt;.concurrency,
+ * bulkhead.&lt;kind&gt;.queue and bulkhead.&lt;kind&gt;.timeout (seconds), for example
+ * bulkhead.search.concurrency.
+ */
+public class Bulkhead {
+
+  public enum Kind {
+    /** requests by id, answered by primary key lookups */
+    LOOKUP(8, 64, 1, 60),
+    /**
+     * type-ahead searches: many short requests, one per keystroke, but the contains
+     * search may read much of the trigram index; an answer after 30 s is of no use
+     */
+    TYPEAHEAD(4, 32, 1, 30),
+    /** CQL searches, exports and member lists */
+    SEARCH(4, 16, 5, 300);
+
+    final int concurrency;
+    final int queue;
+    /** seconds for the Retry-After header */
+    final int retryAfter;
+    /** seconds a request may hold its slot */
+    final int timeout;
+
+    Kind(int concurrency, int queue, int retryAfter, int timeout) {
+      this.concurrency = Integer.getInteger("bulkhead." + label() + ".concurrency", concurrency);
+      this.queue = Integer.getInteger("bulkhead." + label() + ".queue", queue);
+      this.retryAfter = retryAfter;
+      this.timeout = Integer.getInteger("bulkhead." + label() + ".timeout", timeout);
+    }
+
+    String label() {
+      return name().toLowerCase();
+    }
+  }
+
+  /** a request, it passes its response to the handler it gets */
+  @FunctionalInterface
+  public interface Task {
+    void run(Handler<AsyncResult<Response>> handler) throws Exception;
+  }
+
+  /** what a compartment does with a new request */
+  private enum Admission {
+    RUN, QUEUED, REJECTED
+  }
+
+  private static final Logger log = LoggerFactory.getLogger(Bulkhead.class);
+  private static final Bulkhead INSTANCE = new Bulkhead();
+
+  private final ConcurrentMap<String, Compartment> compartments = new ConcurrentHashMap<>();
+
+  /** the running and waiting requests of one tenant and kind */
+  private static class Compartment {
+    final Kind kind;
+    final Deque<Runnable> waiting = new ArrayDeque<>();
+    int running;
+
+    Compartment(Kind kind) {
+      this.kind = kind;
+    }
+
+    /**
+     * @return RUN if request can run now, QUEUED if it waits for a slot, REJECTED if the
+     *   queue is full
+     */
+    synchronized Admission start(Runnable request) {
+      if (running < kind.concurrency) {
+        running++;
+        return Admission.RUN;
+      }
+      if (waiting.size() < kind.queue) {
+        waiting.add(request);
+        return Admission.QUEUED;
+      }
+      return Admission.REJECTED;
+    }
+
+    /**
+     * @return the next waiting request, it takes over the slot; null if none is waiting
+     */
+    synchronized Runnable finish() {
+      Runnable next = waiting.poll();
+      if (next == null) {
+        running--;
+      }
+      return next;
+    }
+  }
+
+  public static Bulkhead getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Run a request when the tenant has less than the limit of requests of its kind
+   * running, or reject it with 503 if too many are waiting already.
+   * @param context - the context to run the request on if it has to wait
+   * @param tenantId - may be null
+   * @param handler - the result handler of the request
+   * @param task - the request, its slot is freed when it passes its response on or when
+   *   it times out; a response after the timeout is dropped
+   */
+  public void execute(Context context, String tenantId, Kind kind, Handler<AsyncResult<Response>> handler,
+      Task task) {
+    Compartment compartment = compartments.computeIfAbsent(kind.label() + " " + tenantId, k -> new Compartment(kind));
+    AtomicBoolean done = new AtomicBoolean();
+    AtomicLong timer = new AtomicLong(-1);
+    Handler<AsyncResult<Response>> release = reply -> {
+      if (!done.compareAndSet(false, true)) {
+        log.warn("Dropping the response of a " + kind.label() + " request of tenant " + tenantId
+            + " that timed out");
+        return;
+      }
+      context.owner().cancelTimer(timer.get());
+      Runnable next = compartment.finish();
+      if (next != null) {
+        next.run();
+      }
+      handler.handle(reply);
+    };
+    Runnable request = () -> {
+      timer.set(context.owner().setTimer(TimeUnit.SECONDS.toMillis(kind.timeout), id -> {
+        log.error("A " + kind.label() + " request of tenant " + tenantId + " has not answered within "
+            + kind.timeout + " s, freeing its slot");
+        release.handle(Future.succeededFuture(Response.status(500)
+            .type(MediaType.TEXT_PLAIN)
+            .entity("The request has not been answered within " + kind.timeout + " s")
+            .build()));
+      }));
+      run(task, release);
+    };
+    Admission admission = compartment.start(() -> context.runOnContext(v -> request.run()));
+    if (admission == Admission.REJECTED) {
+      Metrics.getInstance().rejected(kind.label(), tenantId);
+      log.warn("Rejecting a " + kind.label() + " request of tenant " + tenantId + ", "
+          + kind.queue + " are waiting already");
+      handler.handle(Future.succeededFuture(Response.status(503)
+          .header("Retry-After", Integer.toString(kind.retryAfter))
+          .type(MediaType.TEXT_PLAIN)
+          .entity("Too many requests of tenant " + tenantId + ", retry after " + kind.retryAfter + " s")
+          .build()));
+      return;
+    }
+    if (admission == Admission.RUN) {
+      request.run();
+    }
+  }
+
+  private static void run(Task task, Handler<AsyncResult<Response>> handler) {
+    try {
+      task.run(handler);
+    } catch (Exception e) {
+      log.error(e.getMessage(), e);
+      handler.handle(Future.failedFuture(e));
+    }
+  }
+}
@@ -0,0 +1,353 @@
+package org.folio.rest.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.z3950.zing.cql.CQLParseException;
+import org.z3950.zing.cql.CQLParser;
+import org.z3950.zing.cql.CQLSortNode;
+import org.z3950.zing.cql.cql2pgjson.CQL2PgJSON;
+import org.z3950.zing.cql.cql2pgjson.FieldException;
+import org.z3950.zing.cql.cql2pgjson.QueryValidationException;
+
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * CQL2PgJSON that caches its translations, one instance per JSON field.
+ *
+ * Queries are cached by their shape: the search terms are taken out, the shape is
+ * translated once with placeholder terms and later queries of the same shape get the
+ * cached SQL with their terms put back in. Only plain terms (letters, digits, dashes) that
+ * are not CQL keywords are handled this way, and a shape is only used after substituting
+ * into it has given exactly the SQL of a real translation; all other queries are cached by
+ * their full text.
+ *
+ * As a shape is only verified with its first query, the shape keeps the class of every
+ * term that CQL2PgJSON may translate by its value: booleans stay in the shape as they
+ * are, numbers and words have their own signatures, and terms that Java reads as a
+ * number without being digits only, wildcards and empty terms are not plain.
+ */
+public class CachingCQL2PgJSON extends CQL2PgJSON {
+
+  public static final int MAX_SHAPES  = 500;
+  public static final int MAX_QUERIES = 1000;
+
+  /** log the hit rate every this many translations */
+  private static final long LOG_INTERVAL = 10000;
+  private static final Logger log = LoggerFactory.getLogger(CachingCQL2PgJSON.class);
+  private static final Map<String, CachingCQL2PgJSON> INSTANCES = new ConcurrentHashMap<>();
+
+  /** relation followed by its term, the term either quoted or up to the next space or parenthesis */
+  private static final Pattern TERM = Pattern.compile(
+      "(==|<>|<=|>=|=|<|>|\\badj\\b|\\ball\\b|\\bany\\b)(\\s*)(\"((?:[^\"\\\\]|\\\\.)*)\"|[^\\s()\"]+)");
+  private static final Pattern PLAIN = Pattern.compile("[A-Za-z0-9]+(-[A-Za-z0-9]+)*");
+  private static final Pattern WORD = Pattern.compile("[A-Za-z0-9]+");
+  private static final Pattern DIGITS = Pattern.compile("[0-9]+");
+  /** terms that are kept in the shape, the SQL may depend on them */
+  private static final Pattern BOOLEAN = Pattern.compile("true|false", Pattern.CASE_INSENSITIVE);
+  /** the parser does not take these as unquoted terms, queries with them are cached by their text */
+  private static final Pattern KEYWORD = Pattern.compile("and|or|not|prox|sortby", Pattern.CASE_INSENSITIVE);
+  private static final String WORD_PLACEHOLDER = "QxZ";
+  private static final String NUMBER_PLACEHOLDER = "90817";
+  private static final int MAX_TERMS = 26;
+  /** a shape whose translation can not be reused */
+  private static final Shape UNUSABLE = new Shape(null, null);
+
+  private final String field;
+  private final Map<String, Shape> shapes = lru(MAX_SHAPES);
+  private final Map<String, String> queries = lru(MAX_QUERIES);
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  private static class Shape {
+    final String sql;
+    final List<String> placeholders;
+
+    Shape(String sql, List<String> placeholders) {
+      this.sql = sql;
+      this.placeholders = placeholders;
+    }
+  }
+
+  /** the terms of a query and the same query with its terms replaced */
+  private static class Terms {
+    final List<String> values = new ArrayList<>();
+    final List<String> placeholders = new ArrayList<>();
+    String shape;
+    String placeholderQuery;
+  }
+
+  protected CachingCQL2PgJSON(String field) throws FieldException {
+    super(field);
+    this.field = field;
+  }
+
+  /**
+   * @param field - JSON column, for example users.jsonb
+   */
+  public static CachingCQL2PgJSON getInstance(String field) throws FieldException {
+    CachingCQL2PgJSON instance = INSTANCES.get(field);
+    if (instance == null) {
+      INSTANCES.putIfAbsent(field, new CachingCQL2PgJSON(field));
+      instance = INSTANCES.get(field);
+    }
+    return instance;
+  }
+
+  @Override
+  public String cql2pgJson(String cql) throws QueryValidationException {
+    long start = System.nanoTime();
+    Terms terms = terms(cql);
+    if (terms == null) {
+      return byQuery(cql, start);
+    }
+    Shape shape;
+    synchronized (shapes) {
+      shape = shapes.get(terms.shape);
+    }
+    if (shape == UNUSABLE) {
+      return byQuery(cql, start);
+    }
+    if (shape != null) {
+      String sql = substitute(shape.sql, shape.placeholders, terms.values);
+      count(hits, start);
+      return sql;
+    }
+    String sql = super.cql2pgJson(cql);
+    String shapeSql = super.cql2pgJson(terms.placeholderQuery);
+    if (sql.equals(substitute(shapeSql, terms.placeholders, terms.values))) {
+      shape = new Shape(shapeSql, terms.placeholders);
+    } else {
+      shape = UNUSABLE;
+    }
+    synchronized (shapes) {
+      shapes.put(terms.shape, shape);
+    }
+    count(misses, start);
+    return sql;
+  }
+
+  /**
+   * @return whether the query has a sortby clause. A query the CQL parser rejects is
+   *   reported as not sorted, its translation fails with the parser's error.
+   */
+  public static boolean isSorted(String cql) {
+    try {
+      return new CQLParser().parse(cql) instanceof CQLSortNode;
+    } catch (CQLParseException | IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return the instances created so far
+   */
+  public static Collection<CachingCQL2PgJSON> getInstances() {
+    return Collections.unmodifiableCollection(INSTANCES.values());
+  }
+
+  public String getField() {
+    return field;
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return the share of translations served from the cache, 0 before the first one
+   */
+  public double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0 : (double) h / total;
+  }
+
+  /**
+   * @return the hit rate of all instances
+   */
+  public static double getTotalHitRate() {
+    long h = 0;
+    long total = 0;
+    for (CachingCQL2PgJSON instance : INSTANCES.values()) {
+      h += instance.getHitCount();
+      total += instance.getHitCount() + instance.getMissCount();
+    }
+    return total == 0 ? 0 : (double) h / total;
+  }
+
+  private void count(AtomicLong counter, long start) {
+    counter.incrementAndGet();
+    Metrics.getInstance().timeTranslation(field, counter == hits, start);
+    if ((hits.get() + misses.get()) % LOG_INTERVAL == 0) {
+      log.info("CQL translation cache " + field + ": hit rate " + getHitRate());
+    }
+  }
+
+  private String byQuery(String cql, long start) throws QueryValidationException {
+    String sql;
+    synchronized (queries) {
+      sql = queries.get(cql);
+    }
+    if (sql != null) {
+      count(hits, start);
+      return sql;
+    }
+    sql = super.cql2pgJson(cql);
+    synchronized (queries) {
+      queries.put(cql, sql);
+    }
+    count(misses, start);
+    return sql;
+  }
+
+  /**
+   * @return the terms of the query, null if it has a term that is not plain
+   */
+  private static Terms terms(String cql) {
+    Terms terms = new Terms();
+    StringBuilder shape = new StringBuilder();
+    StringBuilder placeholderQuery = new StringBuilder();
+    Matcher m = TERM.matcher(cql);
+    int last = 0;
+    while (m.find()) {
+      boolean quoted = m.group(4) != null;
+      String value = quoted ? m.group(4) : m.group(3);
+      if (BOOLEAN.matcher(value).matches()) {
+        continue;
+      }
+      if (terms.values.size() == MAX_TERMS || !isPlain(value)) {
+        return null;
+      }
+      String quote = quoted ? "\"" : "";
+      String relation = m.group(1) + m.group(2) + quote;
+      String placeholder = placeholder(value, terms.values.size());
+      terms.values.add(value);
+      terms.placeholders.add(placeholder);
+      shape.append(cql, last, m.start()).append(relation)
+          .append('\u0000').append(signature(value)).append(quote);
+      placeholderQuery.append(cql, last, m.start()).append(relation)
+          .append(placeholder).append(quote);
+      last = m.end();
+    }
+    if (terms.values.isEmpty()) {
+      return null;
+    }
+    terms.shape = shape.append(cql, last, cql.length()).toString();
+    terms.placeholderQuery = placeholderQuery.append(cql, last, cql.length()).toString();
+    return terms;
+  }
+
+  private static boolean isPlain(String value) {
+    return PLAIN.matcher(value).matches() && value.length() <= 100
+        && !KEYWORD.matcher(value).matches()
+        && !value.contains(WORD_PLACEHOLDER) && !value.contains(NUMBER_PLACEHOLDER)
+        && !isOtherNumber(value);
+  }
+
+  /**
+   * @return whether value or one of its words reads as a number, but not as digits only:
+   *   1e5, 1e-5, 2d or NaN would get the signature of a word
+   */
+  private static boolean isOtherNumber(String value) {
+    if (isNumber(value)) {
+      return true;
+    }
+    Matcher m = WORD.matcher(value);
+    while (m.find()) {
+      if (isNumber(m.group())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isNumber(String value) {
+    if (DIGITS.matcher(value).matches()) {
+      return false;
+    }
+    try {
+      Double.parseDouble(value);
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Words of letters become w, numbers 9 or 0 with a leading zero, dashes stay: a shape
+   * only covers terms that CQL2PgJSON splits and types the same way.
+   */
+  private static String signature(String value) {
+    Matcher m = WORD.matcher(value);
+    StringBuilder sb = new StringBuilder();
+    int end = 0;
+    while (m.find()) {
+      sb.append(value, end, m.start());
+      String word = m.group();
+      if (!DIGITS.matcher(word).matches()) {
+        sb.append('w');
+      } else if (word.length() > 1 && word.charAt(0) == '0') {
+        sb.append('0');
+      } else {
+        sb.append('9');
+      }
+      end = m.end();
+    }
+    return sb.toString();
+  }
+
+  /**
+   * A term of the same signature that does not occur in any translation. Words are mixed
+   * case, so that the shape of a translation that changes case does not verify.
+   */
+  private static String placeholder(String value, int index) {
+    Matcher m = WORD.matcher(value);
+    StringBuilder sb = new StringBuilder();
+    int end = 0;
+    int word = 100;
+    while (m.find()) {
+      sb.append(value, end, m.start());
+      String w = m.group();
+      if (!DIGITS.matcher(w).matches()) {
+        sb.append(WORD_PLACEHOLDER).append((char) ('a' + index)).append(word).append("vJq");
+      } else {
+        sb.append(w.length() > 1 && w.charAt(0) == '0' ? "0" : "")
+          .append(NUMBER_PLACEHOLDER).append(10 + index).append(word);
+      }
+      word++;
+      end = m.end();
+    }
+    return sb.toString();
+  }
+
+  private static String substitute(String sql, List<String> placeholders, List<String> values) {
+    for (int i = 0; i < placeholders.size(); i++) {
+      sql = sql.replace(placeholders.get(i), values.get(i));
+    }
+    return sql;
+  }
+
+  private static <V> Map<String, V> lru(int max) {
+    return new LinkedHashMap<String, V>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+        return size() > max;
+      }
+    };
+  }
+}
@@ -0,0 +1,51 @@
+package org.folio.rest.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque position in the change feed of the users: the transaction id and sequence
+ * number of the last change a client has received. The feed is ordered by both, so the
+ * next request returns the changes after this position.
+ */
+public class ChangeCursor {
+
+  /** the position before the first change */
+  public static final ChangeCursor START = new ChangeCursor(0, 0);
+
+  private final long xid;
+  private final long seq;
+
+  public ChangeCursor(long xid, long seq) {
+    this.xid = xid;
+    this.seq = seq;
+  }
+
+  /**
+   * @throws IllegalArgumentException if the token was not created by {@link #encode()}
+   */
+  public static ChangeCursor decode(String token) {
+    try {
+      String[] parts = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split("\\.");
+      if (parts.length != 2) {
+        throw new IllegalArgumentException();
+      }
+      return new ChangeCursor(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("Invalid since token " + token, e);
+    }
+  }
+
+  public String encode() {
+    return Base64.getUrlEncoder().withoutPadding()
+        .encodeToString((xid + "." + seq).getBytes(StandardCharsets.UTF_8));
+  }
+
+  public long getXid() {
+    return xid;
+  }
+
+  public long getSeq() {
+    return seq;
+  }
+}
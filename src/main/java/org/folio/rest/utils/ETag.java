@@ -0,0 +1,63 @@
+package org.folio.rest.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Entity tags of the GET responses and the If-None-Match matching of conditional GETs.
+ *
+ * A tag is passed around without its quotes; {@link #quote(String)} formats it for the
+ * ETag header.
+ */
+public class ETag {
+
+  /** If-None-Match value that matches any current representation */
+  public static final String ANY = "*";
+
+  private ETag() {
+  }
+
+  /**
+   * @return tag as the value of an ETag header
+   */
+  public static String quote(String tag) {
+    return "\"" + tag + "\"";
+  }
+
+  /**
+   * @param ifNoneMatch - value of the If-None-Match header, may be null
+   * @return the tags listed by ifNoneMatch without quotes and weak prefix, {@link #ANY}
+   *   for the wildcard, or an empty list if there is no header
+   */
+  public static List<String> parse(String ifNoneMatch) {
+    if (ifNoneMatch == null || ifNoneMatch.trim().isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<String> tags = new ArrayList<>();
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+        tag = tag.substring(1, tag.length() - 1);
+      }
+      if (!tag.isEmpty()) {
+        tags.add(tag);
+      }
+    }
+    return tags;
+  }
+
+  /**
+   * If-None-Match uses the weak comparison, a W/ prefix is ignored.
+   * @param ifNoneMatch - value of the If-None-Match header, may be null
+   * @param tag - the tag of the current representation
+   * @return whether the client already has the current representation
+   */
+  public static boolean matches(String ifNoneMatch, String tag) {
+    List<String> tags = parse(ifNoneMatch);
+    return tags.contains(ANY) || tags.contains(tag);
+  }
+}
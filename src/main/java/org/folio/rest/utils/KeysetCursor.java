@@ -0,0 +1,69 @@
+package org.folio.rest.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import io.vertx.core.json.JsonArray;
+
+/**
+ * Opaque continuation token for keyset pagination: the sort field and direction of the
+ * query plus the sort value and id of the last record returned. The next page starts
+ * right after that record, so its cost does not depend on how many records came before.
+ */
+public class KeysetCursor {
+
+  private final String orderBy;
+  private final boolean descending;
+  private final String value;
+  private final String id;
+
+  public KeysetCursor(String orderBy, boolean descending, String value, String id) {
+    this.orderBy = orderBy;
+    this.descending = descending;
+    this.value = value;
+    this.id = id;
+  }
+
+  /**
+   * @throws IllegalArgumentException if the token was not created by {@link #encode()}, this
+   *   includes tokens without sort field, direction or id, and tokens without sort value
+   *   unless they sort by {@link SqlUtil#ID_FIELD}
+   */
+  public static KeysetCursor decode(String token) {
+    KeysetCursor cursor;
+    try {
+      JsonArray a = new JsonArray(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+      cursor = new KeysetCursor(a.getString(0), a.getBoolean(1), a.getString(2), a.getString(3));
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("Invalid after token " + token, e);
+    }
+    if (cursor.orderBy == null || cursor.id == null
+        || (cursor.value == null && !SqlUtil.ID_FIELD.equals(cursor.orderBy))) {
+      throw new IllegalArgumentException("Invalid after token " + token);
+    }
+    return cursor;
+  }
+
+  public String encode() {
+    JsonArray a = new JsonArray().add(orderBy).add(descending).add(value).add(id);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(a.encode().getBytes(StandardCharsets.UTF_8));
+  }
+
+  public boolean matches(String orderBy, boolean descending) {
+    return this.orderBy.equals(orderBy) && this.descending == descending;
+  }
+
+  /**
+   * @param sortExpression - SQL expression of the sort field
+   * @param idExpression - SQL expression of the unique id that breaks ties
+   * @return the condition selecting the records after this cursor
+   */
+  public String condition(String sortExpression, String idExpression) {
+    String op = descending ? " < " : " > ";
+    if (sortExpression.equals(idExpression)) {
+      return idExpression + op + SqlUtil.literal(id);
+    }
+    return "(" + sortExpression + ", " + idExpression + ")" + op
+        + "(" + SqlUtil.literal(value) + ", " + SqlUtil.literal(id) + ")";
+  }
+}
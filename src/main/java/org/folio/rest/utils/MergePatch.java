@@ -0,0 +1,87 @@
+package org.folio.rest.utils;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+
+import javax.validation.constraints.NotNull;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * JSON merge patches (RFC 7396) of records. The patch is applied in the database by the
+ * jsonb_merge_patch function of the tenant schema; this class checks a patch against the
+ * record class first.
+ */
+public class MergePatch {
+
+  private MergePatch() {
+  }
+
+  /**
+   * Check the types and property names of a patch by decoding its non null values into
+   * the record class, and bring the values into the form the record class encodes them
+   * in (for example dates), so that a patched record looks like one written by PUT.
+   *
+   * @param patch - the merge patch, null values remove a property
+   * @param type - the record class
+   * @return the normalized patch, with the null values of patch
+   * @throws DecodeException if a property is unknown or has the wrong type, or if the
+   *   patch removes a required property
+   */
+  public static JsonObject normalize(JsonObject patch, Class<?> type) {
+    checkRequired(patch, type, "");
+    Object record = Json.decodeValue(withoutNulls(patch).encode(), type);
+    JsonObject normalized = new JsonObject(Json.encode(record));
+    restoreNulls(patch, normalized);
+    return normalized;
+  }
+
+  /**
+   * Reject nulls of the required (NotNull) properties of type and of its nested objects.
+   * A patch that adds a nested object without its required properties can only be
+   * detected on the merged record.
+   */
+  private static void checkRequired(JsonObject patch, Class<?> type, String path) {
+    for (Field field : type.getDeclaredFields()) {
+      JsonProperty property = field.getAnnotation(JsonProperty.class);
+      if (property == null || !patch.containsKey(property.value())) {
+        continue;
+      }
+      Object value = patch.getValue(property.value());
+      if (value == null && field.isAnnotationPresent(NotNull.class)) {
+        throw new DecodeException(path + property.value() + " is required, it can not be removed");
+      }
+      if (value instanceof JsonObject) {
+        checkRequired((JsonObject) value, field.getType(), path + property.value() + ".");
+      }
+    }
+  }
+
+  private static JsonObject withoutNulls(JsonObject json) {
+    JsonObject result = new JsonObject();
+    for (Map.Entry<String, Object> entry : json) {
+      Object value = entry.getValue();
+      if (value instanceof JsonObject) {
+        result.put(entry.getKey(), withoutNulls((JsonObject) value));
+      } else if (value != null) {
+        result.put(entry.getKey(), value);
+      }
+    }
+    return result;
+  }
+
+  private static void restoreNulls(JsonObject patch, JsonObject normalized) {
+    for (Map.Entry<String, Object> entry : patch) {
+      Object value = entry.getValue();
+      if (value == null) {
+        normalized.putNull(entry.getKey());
+      } else if (value instanceof JsonObject && normalized.getValue(entry.getKey()) instanceof JsonObject) {
+        restoreNulls((JsonObject) value, normalized.getJsonObject(entry.getKey()));
+      }
+    }
+  }
+}
@@ -0,0 +1,240 @@
+package org.folio.rest.utils;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+
+import javax.ws.rs.core.Response;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+
+/**
+ * Request and database metrics of the module, exported in the Prometheus text format
+ * by GET /metrics.
+ *
+ * Every handler wraps its result handler with {@link #request(String, String, Handler)},
+ * which counts the request as in flight until the response is handed to RMB and then
+ * records its latency by endpoint and status, and its tenant. Handlers additionally
+ * record the time spent waiting for the database and in (de)serialization they do
+ * themselves with {@link #time(Phase, String, long)}; the CQL translation time is
+ * recorded by {@link CachingCQL2PgJSON}.
+ */
+public class Metrics {
+
+  public enum Phase {
+    DB, SERIALIZATION;
+
+    String label() {
+      return name().toLowerCase();
+    }
+  }
+
+  /** upper bounds of the histogram buckets in seconds */
+  static final double[] BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+  private static final String PREFIX = "mod_users_";
+  private static final Metrics INSTANCE = new Metrics();
+
+  private final ConcurrentMap<String, Histogram> requests = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Histogram> phases = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Histogram> translations = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, AtomicLong> inFlight = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, AtomicLong> tenantRequests = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, AtomicLong> rejections = new ConcurrentHashMap<>();
+
+  static class Histogram {
+    final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+    final DoubleAdder sum = new DoubleAdder();
+
+    void observe(double seconds) {
+      int i = 0;
+      while (i < BUCKETS.length && seconds > BUCKETS[i]) {
+        i++;
+      }
+      buckets.incrementAndGet(i);
+      sum.add(seconds);
+    }
+  }
+
+  public static Metrics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param endpoint - method and path template, for example GET /users/{userId}
+   * @param tenantId - may be null
+   * @param handler - the result handler passed by RMB
+   * @return handler that records the request and passes the response on to handler
+   */
+  public Handler<AsyncResult<Response>> request(String endpoint, String tenantId,
+      Handler<AsyncResult<Response>> handler) {
+    long start = System.nanoTime();
+    AtomicLong running = counter(inFlight, labels("endpoint", endpoint));
+    running.incrementAndGet();
+    AtomicBoolean done = new AtomicBoolean();
+    return reply -> {
+      if (done.compareAndSet(false, true)) {
+        running.decrementAndGet();
+        String status = reply.succeeded() && reply.result() != null
+            ? Integer.toString(reply.result().getStatus()) : "500";
+        histogram(requests, labels("endpoint", endpoint, "status", status)).observe(seconds(start));
+        counter(tenantRequests, labels("tenant", String.valueOf(tenantId), "status", status)).incrementAndGet();
+      }
+      handler.handle(reply);
+    };
+  }
+
+  /**
+   * Record the time of one phase of a request.
+   * @param start - System.nanoTime() when the phase started
+   */
+  public void time(Phase phase, String endpoint, long start) {
+    histogram(phases, labels("phase", phase.label(), "endpoint", endpoint)).observe(seconds(start));
+  }
+
+  /**
+   * Record the time of one phase of a request that ends with a result, for the steps of
+   * a composed pipeline: the phase starts now and ends when the returned handler is called.
+   */
+  public <T> Handler<AsyncResult<T>> timed(Phase phase, String endpoint, Handler<AsyncResult<T>> handler) {
+    long start = System.nanoTime();
+    return reply -> {
+      time(phase, endpoint, start);
+      handler.handle(reply);
+    };
+  }
+
+  /**
+   * Record the time of a CQL translation.
+   * @param field - JSON column the query was translated for
+   * @param cached - whether the translation came from the cache
+   */
+  public void timeTranslation(String field, boolean cached, long start) {
+    histogram(translations, labels("field", field, "cached", Boolean.toString(cached))).observe(seconds(start));
+  }
+
+  /**
+   * Count a request rejected by the {@link Bulkhead}.
+   * @param kind - the kind of request, for example search
+   * @param tenantId - may be null
+   */
+  public void rejected(String kind, String tenantId) {
+    counter(rejections, labels("kind", kind, "tenant", String.valueOf(tenantId))).incrementAndGet();
+  }
+
+  /**
+   * @return all metrics in the Prometheus text exposition format
+   */
+  public String scrape() {
+    StringBuilder sb = new StringBuilder();
+    histograms(sb, "request_duration_seconds", "Latency of the requests by endpoint and status", requests);
+    histograms(sb, "phase_duration_seconds", "Time spent in database calls and serialization by endpoint", phases);
+    histograms(sb, "cql_translation_duration_seconds", "Time spent translating CQL to SQL", translations);
+    gauges(sb, "requests_in_flight", "Requests being processed by endpoint", "gauge", inFlight);
+    gauges(sb, "tenant_requests_total", "Requests by tenant and status", "counter", tenantRequests);
+    gauges(sb, "bulkhead_rejected_total", "Requests rejected with 503 by kind and tenant", "counter", rejections);
+
+    Map<String, Long> hits = new TreeMap<>();
+    Map<String, Long> misses = new TreeMap<>();
+    hits.put(labels("cache", "patron_groups"), PatronGroupCache.getInstance().getHitCount());
+    misses.put(labels("cache", "patron_groups"), PatronGroupCache.getInstance().getMissCount());
+    hits.put(labels("cache", "users"), UserCache.getInstance().getHitCount());
+    misses.put(labels("cache", "users"), UserCache.getInstance().getMissCount());
+    for (CachingCQL2PgJSON cql : CachingCQL2PgJSON.getInstances()) {
+      hits.put(labels("cache", "cql " + cql.getField()), cql.getHitCount());
+      misses.put(labels("cache", "cql " + cql.getField()), cql.getMissCount());
+    }
+    values(sb, "cache_hits_total", "Cache hits", "counter", hits);
+    values(sb, "cache_misses_total", "Cache misses", "counter", misses);
+    values(sb, "cache_invalidations_total", "Cache invalidations, including those of other instances", "counter",
+        Collections.singletonMap(labels("cache", "users"), UserCache.getInstance().getInvalidationCount()));
+    values(sb, "cache_entries", "Cached entries", "gauge",
+        Collections.singletonMap(labels("cache", "users"), (long) UserCache.getInstance().size()));
+    return sb.toString();
+  }
+
+  private static double seconds(long start) {
+    return (System.nanoTime() - start) / 1e9;
+  }
+
+  private static Histogram histogram(ConcurrentMap<String, Histogram> map, String labels) {
+    Histogram histogram = map.get(labels);
+    if (histogram == null) {
+      map.putIfAbsent(labels, new Histogram());
+      histogram = map.get(labels);
+    }
+    return histogram;
+  }
+
+  private static AtomicLong counter(ConcurrentMap<String, AtomicLong> map, String labels) {
+    AtomicLong counter = map.get(labels);
+    if (counter == null) {
+      map.putIfAbsent(labels, new AtomicLong());
+      counter = map.get(labels);
+    }
+    return counter;
+  }
+
+  /**
+   * @param nameValues - label names and values, alternating
+   * @return the labels in Prometheus syntax without the braces, for example endpoint="GET /users"
+   */
+  static String labels(String... nameValues) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < nameValues.length; i += 2) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(nameValues[i]).append("=\"").append(nameValues[i + 1]
+          .replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+    }
+    return sb.toString();
+  }
+
+  private static void header(StringBuilder sb, String name, String help, String type) {
+    sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void histograms(StringBuilder sb, String name, String help, Map<String, Histogram> map) {
+    header(sb, name, help, "histogram");
+    for (Map.Entry<String, Histogram> entry : new TreeMap<>(map).entrySet()) {
+      String labels = entry.getKey();
+      Histogram histogram = entry.getValue();
+      long count = 0;
+      for (int i = 0; i <= BUCKETS.length; i++) {
+        count += histogram.buckets.get(i);
+        String le = i < BUCKETS.length ? Double.toString(BUCKETS[i]) : "+Inf";
+        sb.append(PREFIX).append(name).append("_bucket{").append(labels).append(",le=\"").append(le)
+          .append("\"} ").append(count).append('\n');
+      }
+      sb.append(PREFIX).append(name).append("_sum{").append(labels).append("} ")
+        .append(histogram.sum.sum()).append('\n');
+      sb.append(PREFIX).append(name).append("_count{").append(labels).append("} ")
+        .append(count).append('\n');
+    }
+  }
+
+  private static void gauges(StringBuilder sb, String name, String help, String type,
+      Map<String, AtomicLong> map) {
+    Map<String, Long> values = new TreeMap<>();
+    for (Map.Entry<String, AtomicLong> entry : map.entrySet()) {
+      values.put(entry.getKey(), entry.getValue().get());
+    }
+    values(sb, name, help, type, values);
+  }
+
+  private static void values(StringBuilder sb, String name, String help, String type, Map<String, Long> values) {
+    header(sb, name, help, type);
+    for (Map.Entry<String, Long> entry : values.entrySet()) {
+      sb.append(PREFIX).append(name).append('{').append(entry.getKey()).append("} ")
+        .append(entry.getValue()).append('\n');
+    }
+  }
+}
@@ -0,0 +1,249 @@
+package org.folio.rest.utils;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.folio.rest.impl.UserGroupAPI;
+import org.folio.rest.persist.PostgresClient;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * In memory cache of the patron group ids of each tenant, used to validate the
+ * patronGroup of a user without a database round trip.
+ *
+ * The ids of a tenant are loaded with a single query the first time they are needed
+ * and are dropped after {@link #DEFAULT_TTL_MILLIS}, when the groups of the tenant change
+ * (see {@link #invalidate(Vertx, String)}) or when more than {@link #DEFAULT_MAX_TENANTS}
+ * tenants are cached, in which case the least recently used tenant goes first.
+ *
+ * A change of the groups invalidates the tenant in this instance and publishes the
+ * invalidation on the event bus address {@value #INVALIDATE_ADDRESS}, so that the other
+ * instances of the module in a clustered Vert.x drop it too; a group deleted by something
+ * other than this module is seen after the TTL at the latest.
+ */
+public class PatronGroupCache {
+
+  public static final int  DEFAULT_MAX_TENANTS = 100;
+  public static final int  DEFAULT_MAX_GROUPS  = 10000;
+  public static final long DEFAULT_TTL_MILLIS  = 5 * 60 * 1000L;
+  public static final String INVALIDATE_ADDRESS = "org.folio.users.patron-group-cache.invalidate";
+
+  private static final Logger log = LoggerFactory.getLogger(PatronGroupCache.class);
+  private static final PatronGroupCache INSTANCE =
+      new PatronGroupCache(DEFAULT_MAX_TENANTS, DEFAULT_MAX_GROUPS, DEFAULT_TTL_MILLIS);
+
+  private final int maxGroups;
+  private final long ttlMillis;
+  private final Map<String, Entry> entries;
+  /**
+   * Set on every invalidation so that a load started before it is not cached. Holds at
+   * most the tenants that are cached or were invalidated recently; the generation of any
+   * other tenant is {@link #forgottenGeneration}.
+   */
+  private final Map<String, Long> generations;
+  /** the last generation handed out by an invalidation, generations only grow */
+  private long lastGeneration;
+  /** the generation of the tenants not in generations, at least as high as any they had */
+  private long forgottenGeneration;
+  private final AtomicBoolean listening = new AtomicBoolean();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  private static class Entry {
+    final Set<String> ids;
+    final long expires;
+
+    Entry(Set<String> ids, long expires) {
+      this.ids = ids;
+      this.expires = expires;
+    }
+  }
+
+  public PatronGroupCache(int maxTenants, int maxGroups, long ttlMillis) {
+    this.maxGroups = maxGroups;
+    this.ttlMillis = ttlMillis;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        if (size() > maxTenants) {
+          forget(eldest.getKey());
+          return true;
+        }
+        return false;
+      }
+    };
+    this.generations = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+        if (size() > maxTenants) {
+          forgottenGeneration = lastGeneration;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  public static PatronGroupCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Check whether a patron group exists for the tenant, querying the groups table only
+   * when the ids of the tenant are not cached or the id is unknown to the cache.
+   */
+  public void exists(Vertx vertx, String tenantId, String groupId, Handler<AsyncResult<Boolean>> handler) {
+    String id = groupId.toLowerCase();
+    Entry entry = get(tenantId);
+    if (entry != null && entry.ids.contains(id)) {
+      hits.incrementAndGet();
+      handler.handle(Future.succeededFuture(true));
+      return;
+    }
+    /* not cached, expired or a group created by another instance of the module */
+    misses.incrementAndGet();
+    load(vertx, tenantId, reply -> {
+      if (reply.failed()) {
+        handler.handle(Future.failedFuture(reply.cause()));
+      } else {
+        handler.handle(Future.succeededFuture(reply.result().contains(id)));
+      }
+    });
+  }
+
+  /**
+   * Set based variant of {@link #exists(Vertx, String, String, Handler)}: find which of the
+   * given patron group ids exist, querying the groups table at most once.
+   * @param groupIds - lower case group ids
+   * @param handler - the subset of groupIds that exist
+   */
+  public void existing(Vertx vertx, String tenantId, Set<String> groupIds,
+      Handler<AsyncResult<Set<String>>> handler) {
+    Entry entry = get(tenantId);
+    if (entry != null && entry.ids.containsAll(groupIds)) {
+      hits.incrementAndGet();
+      handler.handle(Future.succeededFuture(groupIds));
+      return;
+    }
+    misses.incrementAndGet();
+    load(vertx, tenantId, reply -> {
+      if (reply.failed()) {
+        handler.handle(Future.failedFuture(reply.cause()));
+      } else {
+        Set<String> found = new HashSet<>(groupIds);
+        found.retainAll(reply.result());
+        handler.handle(Future.succeededFuture(found));
+      }
+    });
+  }
+
+  /**
+   * Receive the invalidations published by the other instances of the module; only the
+   * first call registers the consumer.
+   */
+  public void listen(Vertx vertx) {
+    if (!listening.compareAndSet(false, true)) {
+      return;
+    }
+    vertx.eventBus().<String>consumer(INVALIDATE_ADDRESS, message -> invalidateLocally(message.body()));
+  }
+
+  /**
+   * Drop the cached group ids of a tenant in this and all other instances of the module,
+   * to be called whenever a group is added, changed or deleted.
+   */
+  public void invalidate(Vertx vertx, String tenantId) {
+    invalidateLocally(tenantId);
+    try {
+      vertx.eventBus().publish(INVALIDATE_ADDRESS, tenantId);
+    } catch (RuntimeException e) {
+      // the groups are dropped in this instance and expire in the others
+      log.error("Can not publish the invalidation of the patron groups of tenant " + tenantId + ": "
+          + e.getMessage(), e);
+    }
+  }
+
+  synchronized void invalidateLocally(String tenantId) {
+    entries.remove(tenantId);
+    generations.put(tenantId, ++lastGeneration);
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private synchronized Entry get(String tenantId) {
+    Entry entry = entries.get(tenantId);
+    if (entry != null && entry.expires < System.currentTimeMillis()) {
+      entries.remove(tenantId);
+      return null;
+    }
+    return entry;
+  }
+
+  private synchronized long generation(String tenantId) {
+    Long generation = generations.get(tenantId);
+    return generation == null ? forgottenGeneration : generation;
+  }
+
+  /**
+   * Drop the generation of a tenant that is no longer cached. Its generation becomes
+   * {@link #forgottenGeneration}, which is not lower than the one dropped, so a load that
+   * started before the last invalidation of the tenant is still not cached.
+   */
+  private void forget(String tenantId) {
+    if (generations.remove(tenantId) != null) {
+      forgottenGeneration = lastGeneration;
+    }
+  }
+
+  private synchronized void put(String tenantId, long generation, Set<String> ids) {
+    if (generation != generation(tenantId)) {
+      // the groups changed while loading, let the next request load them again
+      return;
+    }
+    if (ids.size() > maxGroups) {
+      log.warn("Not caching the " + ids.size() + " patron groups of tenant " + tenantId);
+      return;
+    }
+    entries.put(tenantId, new Entry(ids, System.currentTimeMillis() + ttlMillis));
+  }
+
+  private void load(Vertx vertx, String tenantId, Handler<AsyncResult<Set<String>>> handler) {
+    long generation = generation(tenantId);
+    String sql = "SELECT id::text FROM " + PostgresClient.convertToPsqlStandard(tenantId)
+        + "." + UserGroupAPI.GROUP_TABLE;
+    SqlUtil.client(vertx, tenantId).select(sql, reply -> {
+      if (reply.failed()) {
+        log.error(reply.cause().getMessage(), reply.cause());
+        handler.handle(Future.failedFuture(reply.cause()));
+        return;
+      }
+      Set<String> ids = new HashSet<>();
+      for (JsonArray row : reply.result().getResults()) {
+        ids.add(row.getString(0));
+      }
+      put(tenantId, generation, ids);
+      handler.handle(Future.succeededFuture(ids));
+    });
+  }
+}
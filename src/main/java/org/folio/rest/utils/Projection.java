@@ -0,0 +1,98 @@
+package org.folio.rest.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The properties of a JSON record a client asked for with a fields parameter, for
+ * example id,username,personal.lastName. The database builds the projected JSON, so
+ * the rest of the record is neither transferred nor decoded.
+ */
+public class Projection {
+
+  /** jsonb_build_object takes at most 100 arguments, a name and a value per property */
+  public static final int MAX_FIELDS = 50;
+
+  private static final Pattern PATH = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)*");
+
+  /** property name to null for a whole property, or to the nested projection */
+  private final Map<String, Projection> properties = new LinkedHashMap<>();
+
+  private Projection() {
+  }
+
+  /**
+   * @param fields - comma separated property paths, nested properties separated by dots
+   * @param always - paths that are part of the projection whether asked for or not
+   * @throws IllegalArgumentException if a path is malformed or there are too many
+   */
+  public static Projection parse(String fields, String... always) {
+    Projection projection = new Projection();
+    for (String path : always) {
+      projection.add(path);
+    }
+    int count = 0;
+    for (String path : fields.split(",")) {
+      path = path.trim();
+      if (path.isEmpty()) {
+        continue;
+      }
+      if (!PATH.matcher(path).matches()) {
+        throw new IllegalArgumentException("Invalid field " + path);
+      }
+      if (++count > MAX_FIELDS) {
+        throw new IllegalArgumentException("At most " + MAX_FIELDS + " fields can be requested");
+      }
+      projection.add(path);
+    }
+    return projection;
+  }
+
+  private void add(String path) {
+    int dot = path.indexOf('.');
+    String name = dot < 0 ? path : path.substring(0, dot);
+    if (properties.containsKey(name) && properties.get(name) == null) {
+      // the whole property is requested already
+      return;
+    }
+    if (dot < 0) {
+      properties.put(name, null);
+      return;
+    }
+    Projection nested = properties.get(name);
+    if (nested == null) {
+      nested = new Projection();
+      properties.put(name, nested);
+    }
+    nested.add(path.substring(dot + 1));
+  }
+
+  /**
+   * @param column - SQL expression of the jsonb record
+   * @return SQL expression of the projected record as text; properties the record does
+   *   not have are left out
+   */
+  public String sql(String column) {
+    return "jsonb_strip_nulls(" + build(column) + ")::text";
+  }
+
+  private String build(String column) {
+    StringBuilder sb = new StringBuilder("jsonb_build_object(");
+    for (Map.Entry<String, Projection> property : properties.entrySet()) {
+      if (sb.charAt(sb.length() - 1) != '(') {
+        sb.append(", ");
+      }
+      String name = SqlUtil.literal(property.getKey());
+      String value = column + "->" + name;
+      sb.append(name).append(", ");
+      if (property.getValue() == null) {
+        sb.append(value);
+      } else {
+        // an empty object becomes null, which jsonb_strip_nulls removes
+        sb.append("nullif(jsonb_strip_nulls(").append(property.getValue().build(value)).append("), '{}'::jsonb)");
+      }
+    }
+    return sb.append(')').toString();
+  }
+}
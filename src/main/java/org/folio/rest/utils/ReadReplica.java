@@ -0,0 +1,117 @@
+package org.folio.rest.utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.asyncsql.AsyncSQLClient;
+import io.vertx.ext.asyncsql.PostgreSQLClient;
+
+/**
+ * Optional read only data source, usually a streaming replica of the primary database,
+ * for GET requests that can do with data that is slightly behind the primary.
+ *
+ * It is configured by a JSON file with the keys of postgres-conf.json (host, port,
+ * username, password, database), named by the system property {@value #CONFIG_PROPERTY}.
+ * Without it all requests use the primary. The statements name the tenant schema, so the
+ * configured user needs read access to the schemas of all tenants.
+ *
+ * A request that has to see its own writes, for example a GET right after a PUT, sends
+ * {@value #CONSISTENCY_HEADER}: {@value #STRONG} and is read from the primary.
+ */
+public class ReadReplica {
+
+  public static final String CONFIG_PROPERTY    = "read_postgres_conf";
+  public static final String CONSISTENCY_HEADER = "x-okapi-read-consistency";
+  /** value of {@link #CONSISTENCY_HEADER} that reads from the primary */
+  public static final String STRONG             = "strong";
+
+  private static final Logger logger = LoggerFactory.getLogger(ReadReplica.class);
+
+  private static boolean loaded;
+  private static JsonObject config;
+  private static AsyncSQLClient client;
+
+  private ReadReplica() {
+  }
+
+  /**
+   * Use a read only data source other than the one of {@link #CONFIG_PROPERTY}, or none;
+   * closes the client of the previous configuration.
+   * @param config - connection configuration with the keys of postgres-conf.json, null
+   *   to read everything from the primary
+   */
+  public static synchronized void configure(JsonObject config) {
+    if (client != null) {
+      client.close();
+      client = null;
+    }
+    ReadReplica.config = config;
+    loaded = true;
+  }
+
+  /**
+   * @return whether a read only data source is configured
+   */
+  public static synchronized boolean isConfigured() {
+    if (!loaded) {
+      configure(load());
+    }
+    return config != null;
+  }
+
+  /**
+   * @param okapiHeaders - headers of the request
+   * @return whether the request can be read from the read only data source
+   */
+  public static boolean use(Map<String, String> okapiHeaders) {
+    return isConfigured() && !isStrong(okapiHeaders);
+  }
+
+  /**
+   * @param okapiHeaders - headers of the request
+   * @return whether the request asks for {@value #CONSISTENCY_HEADER}: {@value #STRONG},
+   *   it must not be answered from a replica or a cache
+   */
+  public static boolean isStrong(Map<String, String> okapiHeaders) {
+    for (Map.Entry<String, String> header : okapiHeaders.entrySet()) {
+      if (CONSISTENCY_HEADER.equalsIgnoreCase(header.getKey())) {
+        return STRONG.equalsIgnoreCase(header.getValue());
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return client of the read only data source, only valid if {@link #isConfigured()}
+   */
+  static synchronized AsyncSQLClient getClient(Vertx vertx) {
+    if (client == null) {
+      client = PostgreSQLClient.createNonShared(vertx, config);
+    }
+    return client;
+  }
+
+  private static JsonObject load() {
+    String path = System.getProperty(CONFIG_PROPERTY);
+    if (path == null) {
+      return null;
+    }
+    try {
+      JsonObject json = new JsonObject(new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8));
+      logger.info("Reading from " + json.getString("host") + ":" + json.getInteger("port")
+          + " unless " + CONSISTENCY_HEADER + " is " + STRONG);
+      return json;
+    } catch (IOException | RuntimeException e) {
+      logger.error("Can not read " + CONFIG_PROPERTY + " " + path + ", reading from the primary: "
+          + e.getMessage(), e);
+      return null;
+    }
+  }
+}
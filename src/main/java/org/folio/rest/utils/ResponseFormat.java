@@ -0,0 +1,220 @@
+package org.folio.rest.utils;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.folio.rest.tools.utils.BinaryOutStream;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * Media type of a response chosen by the Accept header of the request. Besides JSON,
+ * the default, records can be sent as CBOR or Smile, binary encodings of the same JSON
+ * data model that are smaller and cheaper to write and parse, for clients that move a
+ * lot of records between services.
+ *
+ * Every negotiated response varies by Accept, and the entity tag of a binary response
+ * carries the format as a suffix so that caches never mix up the representations.
+ */
+public enum ResponseFormat {
+
+  JSON("application/json", "", null),
+  CBOR("application/cbor", "-cbor", new CBORFactory()),
+  SMILE("application/x-jackson-smile", "-smile", new SmileFactory());
+
+  /** the format RMB writes the dates of a JSON response in */
+  private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS+0000";
+
+  private static final Logger log = LoggerFactory.getLogger(ResponseFormat.class);
+
+  private final String mediaType;
+  private final String tagSuffix;
+  private final ObjectMapper mapper;
+
+  ResponseFormat(String mediaType, String tagSuffix, JsonFactory factory) {
+    this.mediaType = mediaType;
+    this.tagSuffix = tagSuffix;
+    this.mapper = factory == null ? null : mapper(factory);
+  }
+
+  /**
+   * @return a mapper for factory with the configuration of the mapper RMB writes JSON
+   *   responses with: no null properties and dates as UTC strings, not timestamps
+   */
+  private static ObjectMapper mapper(JsonFactory factory) {
+    SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return new ObjectMapper(factory)
+        .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+        .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false)
+        .setDateFormat(dateFormat);
+  }
+
+  public String getMediaType() {
+    return mediaType;
+  }
+
+  /**
+   * @param accept - value of the Accept header, may be null
+   * @return the format with the highest quality in accept, JSON if there is a tie with
+   *   JSON, if accept names none of the formats or if there is no Accept header
+   */
+  public static ResponseFormat negotiate(String accept) {
+    if (accept == null) {
+      return JSON;
+    }
+    ResponseFormat best = JSON;
+    double bestQuality = -1;
+    for (String range : accept.split(",")) {
+      String[] parts = range.split(";");
+      String type = parts[0].trim().toLowerCase();
+      double quality = 1;
+      for (int i = 1; i < parts.length; i++) {
+        String param = parts[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            quality = Double.parseDouble(param.substring(2));
+          } catch (NumberFormatException e) {
+            quality = 0;
+          }
+        }
+      }
+      for (ResponseFormat format : values()) {
+        boolean matches = format.mediaType.equals(type) || (format == JSON && ("*/*".equals(type)
+            || "application/*".equals(type)));
+        if (matches && quality > 0 && (quality > bestQuality || (quality == bestQuality && format == JSON))) {
+          best = format;
+          bestQuality = quality;
+        }
+      }
+    }
+    return best;
+  }
+
+  /**
+   * @param tag - entity tag of the JSON representation, without quotes
+   * @return the tag of the representation in this format, without quotes
+   */
+  public String tag(String tag) {
+    return tag + tagSuffix;
+  }
+
+  /**
+   * The handlers compute the tags of the JSON representation; this gives them the
+   * If-None-Match of a request in those terms.
+   * @param ifNoneMatch - value of the If-None-Match header, may be null
+   * @return the tags of ifNoneMatch that are tags of this format, without the format
+   *   suffix, or null if there are none
+   */
+  public String ifNoneMatch(String ifNoneMatch) {
+    List<String> tags = new ArrayList<>();
+    for (String tag : ETag.parse(ifNoneMatch)) {
+      if (ETag.ANY.equals(tag)) {
+        tags.add(ETag.ANY);
+      } else if (formatOf(tag) == this) {
+        tags.add(ETag.quote(tag.substring(0, tag.length() - tagSuffix.length())));
+      }
+    }
+    return tags.isEmpty() ? null : String.join(", ", tags);
+  }
+
+  /** the format whose suffix tag has, JSON if it has none */
+  private static ResponseFormat formatOf(String tag) {
+    for (ResponseFormat format : values()) {
+      if (format != JSON && tag.endsWith(format.tagSuffix)) {
+        return format;
+      }
+    }
+    return JSON;
+  }
+
+  /**
+   * @return the record encoded in this format; JSON is encoded by RMB and not supported here
+   */
+  public byte[] encode(Object entity) throws Exception {
+    if (mapper == null) {
+      throw new UnsupportedOperationException(name());
+    }
+    return mapper.writeValueAsBytes(entity);
+  }
+
+  /**
+   * Wrap the result handler of a request so that a 200 response with a record is sent in
+   * this format, with the headers of the JSON response. The entity tag of any response
+   * gets the suffix of this format, and every response gets Vary: Accept. Responses that
+   * are already serialized keep their body.
+   * @param endpoint - for the serialization timing of {@link Metrics}
+   */
+  public Handler<AsyncResult<Response>> encoder(String endpoint, Handler<AsyncResult<Response>> handler) {
+    return reply -> {
+      if (reply.failed()) {
+        handler.handle(reply);
+        return;
+      }
+      Response json = reply.result();
+      Response.ResponseBuilder builder;
+      if (this == JSON || json.getStatus() != 200 || !isRecord(json.getEntity())) {
+        builder = Response.status(json.getStatus()).entity(json.getEntity());
+        copyHeaders(json, builder, true);
+      } else {
+        long start = System.nanoTime();
+        BinaryOutStream stream = new BinaryOutStream();
+        try {
+          stream.setData(encode(json.getEntity()));
+        } catch (Exception e) {
+          log.error(e.getMessage(), e);
+          handler.handle(Future.failedFuture(e));
+          return;
+        }
+        Metrics.getInstance().time(Metrics.Phase.SERIALIZATION, endpoint, start);
+        builder = Response.ok(stream, mediaType);
+        copyHeaders(json, builder, false);
+      }
+      builder.header(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+      handler.handle(Future.succeededFuture(builder.build()));
+    };
+  }
+
+  /**
+   * Copy the headers of response to builder, with the entity tag of this format.
+   * @param contentType - whether to copy the Content-Type header
+   */
+  private void copyHeaders(Response response, Response.ResponseBuilder builder, boolean contentType) {
+    for (Map.Entry<String, List<Object>> header : response.getMetadata().entrySet()) {
+      if (!contentType && HttpHeaders.CONTENT_TYPE.equalsIgnoreCase(header.getKey())) {
+        continue;
+      }
+      boolean etag = HttpHeaders.ETAG.equalsIgnoreCase(header.getKey());
+      for (Object value : header.getValue()) {
+        if (etag) {
+          List<String> tags = ETag.parse(String.valueOf(value));
+          builder.header(header.getKey(), tags.isEmpty() ? value : ETag.quote(tag(tags.get(0))));
+        } else {
+          builder.header(header.getKey(), value);
+        }
+      }
+    }
+  }
+
+  private static boolean isRecord(Object entity) {
+    return entity != null && !(entity instanceof String) && !(entity instanceof StreamingOutput);
+  }
+}
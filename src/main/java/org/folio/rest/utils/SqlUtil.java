@@ -0,0 +1,254 @@
+package org.folio.rest.utils;
+
+import java.util.Collection;
+
+import org.folio.rest.persist.PostgresClient;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.ext.sql.ResultSet;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.sql.UpdateResult;
+
+/**
+ * Parameterized statements against the tenant schema, for the queries that can not be
+ * expressed with the Criteria / CQL methods of {@link PostgresClient}.
+ */
+public class SqlUtil {
+
+  /** planner estimates below this are replaced by an exact count */
+  public static final int EXACT_COUNT_THRESHOLD = 1000;
+  /** the primary key property of the records of all tables of the module */
+  public static final String ID_FIELD = "id";
+
+  private SqlUtil() {
+  }
+
+  /**
+   * @return the PostgresClient of the tenant with the {@link #ID_FIELD} set. The client is
+   *   not kept here: PostgresClient replaces the client of a tenant that is deleted and
+   *   created again, and a client kept here would be the closed one. Setting the id
+   *   field is a plain assignment, so it is done on every lookup rather than tracking
+   *   which clients are configured.
+   */
+  public static PostgresClient client(Vertx vertx, String tenantId) {
+    PostgresClient client = PostgresClient.getInstance(vertx, tenantId);
+    client.setIdField(ID_FIELD);
+    return client;
+  }
+
+  /**
+   * @return the schema qualified name of a table of the tenant
+   */
+  public static String table(String tenantId, String table) {
+    return PostgresClient.convertToPsqlStandard(tenantId) + "." + table;
+  }
+
+  /**
+   * @return n comma separated ? placeholders
+   */
+  public static String placeholders(int n) {
+    StringBuilder sb = new StringBuilder(n * 3);
+    for (int i = 0; i < n; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append('?');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Quote a value as an SQL string literal, for the statements that embed SQL generated
+   * from CQL and therefore can not use parameters (see {@link #query(Vertx, String, String, Handler)}).
+   */
+  public static String literal(String value) {
+    return "'" + value.replace("'", "''") + "'";
+  }
+
+  /**
+   * Format values as a PostgreSQL text array literal, to be passed as a single
+   * parameter and cast with ?::text[].
+   */
+  public static String textArray(Collection<String> values) {
+    StringBuilder sb = new StringBuilder("{");
+    for (String value : values) {
+      if (sb.length() > 1) {
+        sb.append(',');
+      }
+      sb.append('"').append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+    }
+    return sb.append('}').toString();
+  }
+
+  /**
+   * Escape the wildcards of a LIKE pattern, so that value matches only itself.
+   */
+  public static String likeEscape(String value) {
+    return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+  }
+
+  public static boolean isDuplicate(String errorMessage) {
+    return errorMessage != null && errorMessage.contains("duplicate key value violates unique constraint");
+  }
+
+  /**
+   * Count the rows of a table matching a condition.
+   * @param where - condition, may be null
+   * @param estimate - use the query planner's row estimate, unless it is below
+   *   {@link #EXACT_COUNT_THRESHOLD} in which case the exact count is cheap and returned instead
+   */
+  public static void count(Vertx vertx, String tenantId, String table, String where, boolean estimate,
+      Handler<AsyncResult<Integer>> handler) {
+    count(vertx, tenantId, false, table, where, estimate, handler);
+  }
+
+  /**
+   * Count the rows of a table matching a condition.
+   * @param replica - whether to count on the {@link ReadReplica}
+   * @see #count(Vertx, String, String, String, boolean, Handler)
+   */
+  public static void count(Vertx vertx, String tenantId, boolean replica, String table, String where,
+      boolean estimate, Handler<AsyncResult<Integer>> handler) {
+    String from = " FROM " + table(tenantId, table) + (where == null ? "" : " WHERE " + where);
+    if (!estimate) {
+      exactCount(vertx, tenantId, replica, from, handler);
+      return;
+    }
+    query(vertx, tenantId, replica, "EXPLAIN (FORMAT JSON) SELECT 1" + from, reply -> {
+      if (reply.failed()) {
+        handler.handle(Future.failedFuture(reply.cause()));
+        return;
+      }
+      long rows;
+      try {
+        rows = new JsonArray(reply.result().getResults().get(0).getString(0))
+            .getJsonObject(0).getJsonObject("Plan").getLong("Plan Rows");
+      } catch (RuntimeException e) {
+        handler.handle(Future.failedFuture(e));
+        return;
+      }
+      if (rows < EXACT_COUNT_THRESHOLD) {
+        exactCount(vertx, tenantId, replica, from, handler);
+      } else {
+        handler.handle(Future.succeededFuture((int) Math.min(rows, Integer.MAX_VALUE)));
+      }
+    });
+  }
+
+  private static void exactCount(Vertx vertx, String tenantId, boolean replica, String from,
+      Handler<AsyncResult<Integer>> handler) {
+    query(vertx, tenantId, replica, "SELECT count(*)" + from, reply -> {
+      if (reply.failed()) {
+        handler.handle(Future.failedFuture(reply.cause()));
+      } else {
+        handler.handle(Future.succeededFuture(reply.result().getResults().get(0).getLong(0).intValue()));
+      }
+    });
+  }
+
+  /**
+   * Run a statement without parameters. Used for SQL that embeds a CQL translation: the
+   * driver would take any ? of the translation for a placeholder, and it prepares every
+   * distinct parameterized statement once per connection.
+   */
+  public static void query(Vertx vertx, String tenantId, String sql, Handler<AsyncResult<ResultSet>> handler) {
+    query(vertx, tenantId, false, sql, handler);
+  }
+
+  /**
+   * Run a statement without parameters, on the {@link ReadReplica} if replica is true.
+   */
+  public static void query(Vertx vertx, String tenantId, boolean replica, String sql,
+      Handler<AsyncResult<ResultSet>> handler) {
+    connection(vertx, tenantId, replica, conn -> {
+      if (conn.failed()) {
+        handler.handle(Future.failedFuture(conn.cause()));
+        return;
+      }
+      conn.result().query(sql, reply -> {
+        conn.result().close();
+        handler.handle(reply);
+      });
+    });
+  }
+
+  /**
+   * Run a statement that returns rows, this includes INSERT / UPDATE / DELETE ... RETURNING.
+   */
+  public static void query(Vertx vertx, String tenantId, String sql, JsonArray params,
+      Handler<AsyncResult<ResultSet>> handler) {
+    query(vertx, tenantId, false, sql, params, handler);
+  }
+
+  /**
+   * Run a statement that returns rows, on the {@link ReadReplica} if replica is true.
+   */
+  public static void query(Vertx vertx, String tenantId, boolean replica, String sql, JsonArray params,
+      Handler<AsyncResult<ResultSet>> handler) {
+    connection(vertx, tenantId, replica, conn -> {
+      if (conn.failed()) {
+        handler.handle(Future.failedFuture(conn.cause()));
+        return;
+      }
+      conn.result().queryWithParams(sql, params, reply -> {
+        conn.result().close();
+        handler.handle(reply);
+      });
+    });
+  }
+
+  /**
+   * Run a statement without parameters that does not return rows, for the statements
+   * that embed SQL generated from CQL.
+   */
+  public static void update(Vertx vertx, String tenantId, String sql, Handler<AsyncResult<UpdateResult>> handler) {
+    connection(vertx, tenantId, conn -> {
+      if (conn.failed()) {
+        handler.handle(Future.failedFuture(conn.cause()));
+        return;
+      }
+      conn.result().update(sql, reply -> {
+        conn.result().close();
+        handler.handle(reply);
+      });
+    });
+  }
+
+  /**
+   * Run a statement that does not return rows.
+   */
+  public static void update(Vertx vertx, String tenantId, String sql, JsonArray params,
+      Handler<AsyncResult<UpdateResult>> handler) {
+    connection(vertx, tenantId, conn -> {
+      if (conn.failed()) {
+        handler.handle(Future.failedFuture(conn.cause()));
+        return;
+      }
+      conn.result().updateWithParams(sql, params, reply -> {
+        conn.result().close();
+        handler.handle(reply);
+      });
+    });
+  }
+
+  private static void connection(Vertx vertx, String tenantId, Handler<AsyncResult<SQLConnection>> handler) {
+    connection(vertx, tenantId, false, handler);
+  }
+
+  private static void connection(Vertx vertx, String tenantId, boolean replica,
+      Handler<AsyncResult<SQLConnection>> handler) {
+    try {
+      if (replica) {
+        ReadReplica.getClient(vertx).getConnection(handler);
+        return;
+      }
+      client(vertx, tenantId).getClient().getConnection(handler);
+    } catch (Exception e) {
+      handler.handle(Future.failedFuture(e));
+    }
+  }
+}
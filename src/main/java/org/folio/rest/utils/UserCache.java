@@ -0,0 +1,206 @@
+package org.folio.rest.utils;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.folio.rest.jaxrs.model.User;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * In memory cache of the users read by id, with their entity tag, so that the frequent
+ * GET /users/{userId} of the same users do not need a database round trip.
+ *
+ * Each tenant keeps up to {@link #DEFAULT_MAX_USERS} users, the least recently used go
+ * first; a user is dropped after {@link #DEFAULT_TTL_MILLIS} or when it is written. Up to
+ * {@link #DEFAULT_MAX_TENANTS} tenants are cached.
+ *
+ * A write invalidates the user in this instance and publishes the invalidation on the
+ * event bus address {@value #INVALIDATE_ADDRESS}, so that the other instances of the
+ * module in a clustered Vert.x drop it too. A write by something other than this module
+ * is seen after the TTL at the latest.
+ */
+public class UserCache {
+
+  public static final int  DEFAULT_MAX_TENANTS = 100;
+  public static final int  DEFAULT_MAX_USERS   = 10000;
+  public static final long DEFAULT_TTL_MILLIS  = 60 * 1000L;
+  public static final String INVALIDATE_ADDRESS = "org.folio.users.user-cache.invalidate";
+
+  private static final Logger log = LoggerFactory.getLogger(UserCache.class);
+  private static final UserCache INSTANCE =
+      new UserCache(DEFAULT_MAX_TENANTS, DEFAULT_MAX_USERS, DEFAULT_TTL_MILLIS);
+
+  private final int maxUsers;
+  private final long ttlMillis;
+  /** tenant id to user id to entry, both in least recently used order */
+  private final Map<String, Map<String, Entry>> tenants;
+  /** bumped on every invalidation so that a read started before it is not cached */
+  private final Map<String, Long> generations = new HashMap<>();
+  private final AtomicBoolean listening = new AtomicBoolean();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  /** a cached user; the user must not be modified */
+  public static class Entry {
+    private final String tag;
+    private final User user;
+    private final long expires;
+
+    Entry(String tag, User user, long expires) {
+      this.tag = tag;
+      this.user = user;
+      this.expires = expires;
+    }
+
+    public String getTag() {
+      return tag;
+    }
+
+    public User getUser() {
+      return user;
+    }
+  }
+
+  public UserCache(int maxTenants, int maxUsers, long ttlMillis) {
+    this.maxUsers = maxUsers;
+    this.ttlMillis = ttlMillis;
+    this.tenants = new LinkedHashMap<String, Map<String, Entry>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Map<String, Entry>> eldest) {
+        return size() > maxTenants;
+      }
+    };
+  }
+
+  public static UserCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Receive the invalidations published by the other instances of the module; only the
+   * first call registers the consumer.
+   */
+  public void listen(Vertx vertx) {
+    if (!listening.compareAndSet(false, true)) {
+      return;
+    }
+    vertx.eventBus().<JsonObject>consumer(INVALIDATE_ADDRESS, message -> {
+      JsonObject body = message.body();
+      invalidateLocally(body.getString("tenant"), body.getString("id"));
+    });
+  }
+
+  /**
+   * @return the cached user, or null if it is not cached or has expired
+   */
+  public synchronized Entry get(String tenantId, String userId) {
+    Map<String, Entry> users = tenants.get(tenantId);
+    Entry entry = users == null ? null : users.get(userId);
+    if (entry != null && entry.expires < System.currentTimeMillis()) {
+      users.remove(userId);
+      entry = null;
+    }
+    if (entry == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return entry;
+  }
+
+  /**
+   * @return the current generation of the tenant, to be passed to
+   *   {@link #put(String, String, String, User, long)} after the user has been read
+   */
+  public synchronized long generation(String tenantId) {
+    Long generation = generations.get(tenantId);
+    return generation == null ? 0L : generation;
+  }
+
+  /**
+   * Cache a user read from the database, unless a user of the tenant has been invalidated
+   * since the read started.
+   * @param generation - {@link #generation(String)} before the read
+   */
+  public synchronized void put(String tenantId, String userId, String tag, User user, long generation) {
+    if (generation != generation(tenantId)) {
+      // a user changed while reading, let the next request read it again
+      return;
+    }
+    Map<String, Entry> users = tenants.get(tenantId);
+    if (users == null) {
+      users = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+          return size() > maxUsers;
+        }
+      };
+      tenants.put(tenantId, users);
+    }
+    users.put(userId, new Entry(tag, user, System.currentTimeMillis() + ttlMillis));
+  }
+
+  /**
+   * Drop a user in this and all other instances of the module, to be called whenever the
+   * user is created, changed or deleted.
+   * @param userId - the user, null for all users of the tenant
+   */
+  public void invalidate(Vertx vertx, String tenantId, String userId) {
+    invalidateLocally(tenantId, userId);
+    JsonObject message = new JsonObject().put("tenant", tenantId);
+    if (userId != null) {
+      message.put("id", userId);
+    }
+    try {
+      vertx.eventBus().publish(INVALIDATE_ADDRESS, message);
+    } catch (RuntimeException e) {
+      // the user is dropped in this instance and expires in the others
+      log.error("Can not publish the invalidation of user " + userId + ": " + e.getMessage(), e);
+    }
+  }
+
+  synchronized void invalidateLocally(String tenantId, String userId) {
+    invalidations.incrementAndGet();
+    generations.put(tenantId, generation(tenantId) + 1);
+    Map<String, Entry> users = tenants.get(tenantId);
+    if (users == null) {
+      return;
+    }
+    if (userId == null) {
+      tenants.remove(tenantId);
+    } else {
+      users.remove(userId);
+    }
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getInvalidationCount() {
+    return invalidations.get();
+  }
+
+  /**
+   * @return the number of cached users of all tenants, including expired ones not yet dropped
+   */
+  public synchronized int size() {
+    int size = 0;
+    for (Map<String, Entry> users : tenants.values()) {
+      size += users.size();
+    }
+    return size;
+  }
+}
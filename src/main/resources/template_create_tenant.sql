@@ -5,8 +5,55 @@ GRANT myuniversity_mymodule TO CURRENT_USER;
 CREATE SCHEMA myuniversity_mymodule AUTHORIZATION myuniversity_mymodule;
 
 CREATE EXTENSION IF NOT EXISTS "pgcrypto";
+CREATE EXTENSION IF NOT EXISTS "pg_trgm";
 
 CREATE TABLE IF NOT EXISTS myuniversity_mymodule.users (id UUID PRIMARY KEY DEFAULT gen_random_uuid(), jsonb JSONB NOT NULL);
+-- unique indexes on the user id and the lower cased username, the POST and PUT
+-- handlers rely on these to reject duplicates instead of querying first
+CREATE UNIQUE INDEX users_id_idx_unique ON myuniversity_mymodule.users((jsonb->>'id'));
+CREATE UNIQUE INDEX users_username_idx_unique ON myuniversity_mymodule.users((lower(jsonb->>'username')));
+-- indexes on the paths most commonly searched on
+CREATE INDEX users_barcode_idx ON myuniversity_mymodule.users((jsonb->>'barcode'));
+CREATE INDEX users_patrongroup_idx ON myuniversity_mymodule.users((jsonb->>'patronGroup'));
+CREATE INDEX users_active_idx ON myuniversity_mymodule.users((jsonb->>'active'));
+-- members of a group in id order, for GET /groups/{groupId}/users and the member count trigger
+CREATE INDEX users_patrongroup_id_idx ON myuniversity_mymodule.users((lower(jsonb->>'patronGroup')), (jsonb->>'id'));
+-- indexes for the sort orders of GET /users, the id breaks ties for keyset paging
+CREATE INDEX users_username_sort_idx ON myuniversity_mymodule.users((lower(jsonb->>'username')), (jsonb->>'id'));
+CREATE INDEX users_barcode_sort_idx ON myuniversity_mymodule.users((coalesce(jsonb->>'barcode', '')), (jsonb->>'id'));
+CREATE INDEX users_lastname_sort_idx ON myuniversity_mymodule.users((lower(coalesce(jsonb->'personal'->>'lastName', ''))), (jsonb->>'id'));
+-- type-ahead search of GET /users/search: prefix matches of each field by range scans
+-- of the C collated indexes, which also return them in order, and matches inside the
+-- fields by a trigram index over all of them
+CREATE INDEX users_lastname_prefix_idx ON myuniversity_mymodule.users((lower(jsonb->'personal'->>'lastName') COLLATE "C"));
+CREATE INDEX users_firstname_prefix_idx ON myuniversity_mymodule.users((lower(jsonb->'personal'->>'firstName') COLLATE "C"));
+CREATE INDEX users_email_prefix_idx ON myuniversity_mymodule.users((lower(jsonb->'personal'->>'email') COLLATE "C"));
+CREATE INDEX users_username_prefix_idx ON myuniversity_mymodule.users((lower(jsonb->>'username') COLLATE "C"));
+CREATE INDEX users_barcode_prefix_idx ON myuniversity_mymodule.users((lower(jsonb->>'barcode') COLLATE "C"));
+CREATE OR REPLACE FUNCTION myuniversity_mymodule.user_search_text(jsonb)
+RETURNS text AS $$
+  SELECT lower(coalesce($1->'personal'->>'lastName', '') || ' ' || coalesce($1->'personal'->>'firstName', '')
+    || ' ' || coalesce($1->'personal'->>'email', '') || ' ' || coalesce($1->>'username', '')
+    || ' ' || coalesce($1->>'barcode', ''));
+$$ LANGUAGE sql IMMUTABLE;
+CREATE INDEX users_search_trgm_idx ON myuniversity_mymodule.users USING gin (myuniversity_mymodule.user_search_text(jsonb) gin_trgm_ops);
+-- record version for optimistic concurrency: 1 for a new user, incremented by every
+-- update whatever version the update carries; PUT and PATCH compare it in their UPDATE
+CREATE OR REPLACE FUNCTION myuniversity_mymodule.set_user_version()
+RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP = 'UPDATE' THEN
+        NEW.jsonb = jsonb_set(NEW.jsonb, '{_version}', to_jsonb(coalesce((OLD.jsonb->>'_version')::int, 0) + 1));
+    ELSE
+        NEW.jsonb = jsonb_set(NEW.jsonb, '{_version}', to_jsonb(1));
+    END IF;
+    RETURN NEW;
+END;
+$$ language 'plpgsql';
+CREATE TRIGGER users_version BEFORE INSERT OR UPDATE ON myuniversity_mymodule.users
+    FOR EACH ROW EXECUTE PROCEDURE myuniversity_mymodule.set_user_version();
+-- index to support @> ops, faster than jsonb_ops
+CREATE INDEX idxgin_users ON myuniversity_mymodule.users USING gin (jsonb jsonb_path_ops);
 
 CREATE TABLE IF NOT EXISTS myuniversity_mymodule.groups (
    id UUID PRIMARY KEY DEFAULT gen_random_uuid(),
@@ -29,7 +76,97 @@ END;
 $$ language 'plpgsql';
 CREATE TRIGGER update_date_groups BEFORE UPDATE ON myuniversity_mymodule.groups FOR EACH ROW EXECUTE PROCEDURE  update_modified_column_groups();
 
+-- number of users per patron group, kept up to date by a trigger on the users table
+-- so that a group can be checked for members without reading them
+CREATE TABLE IF NOT EXISTS myuniversity_mymodule.group_member_counts (
+   group_id text PRIMARY KEY,
+   member_count integer NOT NULL DEFAULT 0
+   );
+CREATE OR REPLACE FUNCTION myuniversity_mymodule.count_group_members()
+RETURNS TRIGGER AS $$
+DECLARE
+    old_group text;
+    new_group text;
+BEGIN
+    IF TG_OP <> 'INSERT' THEN
+        old_group = lower(OLD.jsonb->>'patronGroup');
+    END IF;
+    IF TG_OP <> 'DELETE' THEN
+        new_group = lower(NEW.jsonb->>'patronGroup');
+    END IF;
+    IF old_group IS NOT DISTINCT FROM new_group THEN
+        RETURN NULL;
+    END IF;
+    IF old_group IS NOT NULL THEN
+        UPDATE myuniversity_mymodule.group_member_counts SET member_count = member_count - 1
+            WHERE group_id = old_group;
+    END IF;
+    IF new_group IS NOT NULL THEN
+        INSERT INTO myuniversity_mymodule.group_member_counts AS c (group_id, member_count) VALUES (new_group, 1)
+            ON CONFLICT (group_id) DO UPDATE SET member_count = c.member_count + 1;
+    END IF;
+    RETURN NULL;
+END;
+$$ language 'plpgsql';
+CREATE TRIGGER users_group_member_counts AFTER INSERT OR UPDATE OR DELETE ON myuniversity_mymodule.users
+    FOR EACH ROW EXECUTE PROCEDURE myuniversity_mymodule.count_group_members();
+
+-- apply a JSON merge patch (RFC 7396): null removes a property, objects are merged
+-- recursively, any other value replaces the property; used by PATCH /users/{userId}
+CREATE OR REPLACE FUNCTION myuniversity_mymodule.jsonb_merge_patch(target jsonb, patch jsonb)
+RETURNS jsonb AS $$
+DECLARE
+    result jsonb;
+    key text;
+    value jsonb;
+BEGIN
+    IF jsonb_typeof(patch) <> 'object' THEN
+        RETURN patch;
+    END IF;
+    IF target IS NULL OR jsonb_typeof(target) <> 'object' THEN
+        result = '{}';
+    ELSE
+        result = target;
+    END IF;
+    FOR key, value IN SELECT * FROM jsonb_each(patch) LOOP
+        IF jsonb_typeof(value) = 'null' THEN
+            result = result - key;
+        ELSE
+            result = jsonb_set(result, ARRAY[key], myuniversity_mymodule.jsonb_merge_patch(result->key, value));
+        END IF;
+    END LOOP;
+    RETURN result;
+END;
+$$ language 'plpgsql' IMMUTABLE;
+
+-- change feed of GET /users/changes: the latest change of each user, deleted users stay
+-- as tombstones. Every write of a user moves its row to the end of the feed by giving it
+-- the id of the writing transaction and a new sequence number; the feed only returns rows
+-- of transactions older than all running ones, so rows can not appear behind a position
+-- a client has already read past.
+CREATE SEQUENCE IF NOT EXISTS myuniversity_mymodule.user_changes_seq;
+CREATE TABLE IF NOT EXISTS myuniversity_mymodule.user_changes (
+   id text PRIMARY KEY,
+   xid bigint NOT NULL,
+   seq bigint NOT NULL,
+   deleted boolean NOT NULL
+   );
+CREATE INDEX user_changes_xid_seq_idx ON myuniversity_mymodule.user_changes (xid, seq);
+CREATE OR REPLACE FUNCTION myuniversity_mymodule.record_user_change()
+RETURNS TRIGGER AS $$
+BEGIN
+    INSERT INTO myuniversity_mymodule.user_changes (id, xid, seq, deleted)
+        VALUES (CASE WHEN TG_OP = 'DELETE' THEN OLD.jsonb->>'id' ELSE NEW.jsonb->>'id' END,
+            txid_current(), nextval('myuniversity_mymodule.user_changes_seq'), TG_OP = 'DELETE')
+        ON CONFLICT (id) DO UPDATE SET xid = EXCLUDED.xid, seq = EXCLUDED.seq, deleted = EXCLUDED.deleted;
+    RETURN NULL;
+END;
+$$ language 'plpgsql';
+CREATE TRIGGER users_changes AFTER INSERT OR UPDATE OR DELETE ON myuniversity_mymodule.users
+    FOR EACH ROW EXECUTE PROCEDURE myuniversity_mymodule.record_user_change();
+
 -- join table composite index to ensure a group/user pair can not be inserted twice
 -- CREATE UNIQUE INDEX group_user_unique_idx ON myuniversity_mymodule.groups_users(((jsonb->>'groupId')::text), ((jsonb->>'userId')::text));
 
 GRANT ALL PRIVILEGES ON ALL TABLES IN SCHEMA myuniversity_mymodule TO myuniversity_mymodule;
+GRANT ALL PRIVILEGES ON ALL SEQUENCES IN SCHEMA myuniversity_mymodule TO myuniversity_mymodule;
@@ -2,6 +2,7 @@ package org.folio.moduserstest;
 
 import java.net.HttpURLConnection;
 import java.sql.SQLException;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
@@ -11,6 +12,7 @@ import org.folio.rest.RestVerticle;
 import org.folio.rest.client.TenantClient;
 import org.folio.rest.persist.PostgresClient;
 import org.folio.rest.tools.utils.NetworkUtils;
+import org.folio.rest.utils.ReadReplica;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Rule;
@@ -18,6 +20,9 @@ import org.junit.Test;
 import org.junit.rules.Timeout;
 import org.junit.runner.RunWith;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
 import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
@@ -27,6 +32,8 @@ import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.HttpClientResponse;
 import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.unit.Async;
 import io.vertx.ext.unit.TestContext;
@@ -164,6 +171,34 @@ public class RestVerticleIT {
    return future;
  }
 
+ private Future<Void> getUserNotModified(TestContext context) {
+   Future future = Future.future();
+   HttpClient client = vertx.createHttpClient();
+   client.get(port, "localhost", "/users/1234567", res -> {
+     String etag = res.getHeader("ETag");
+     if(res.statusCode() != 200 || etag == null) {
+       future.fail("Bad response: " + res.statusCode() + ", ETag " + etag);
+       return;
+     }
+     client.get(port, "localhost", "/users/1234567", res2 -> {
+       if(res2.statusCode() == 304 && etag.equals(res2.getHeader("ETag"))) {
+         future.complete();
+       } else {
+         future.fail("Expected 304 for If-None-Match " + etag + ", got " + res2.statusCode());
+       }
+     })
+           .putHeader("X-Okapi-Tenant", "diku")
+           .putHeader("accept", "application/json")
+           .putHeader("If-None-Match", etag)
+           .end();
+   })
+           .putHeader("X-Okapi-Tenant", "diku")
+           .putHeader("content-type", "application/json")
+           .putHeader("accept", "application/json")
+           .end();
+   return future;
+ }
+
    private Future<Void> postAnotherUser(TestContext context) {
     Future future = Future.future();
     JsonObject userObject = new JsonObject()
@@ -270,6 +305,10 @@ public class RestVerticleIT {
       Future<Void> f = Future.future();
       getUser(context).setHandler(f.completer());
       return f;
+    }).compose(v -> {
+      Future<Void> f = Future.future();
+      getUserNotModified(context).setHandler(f.completer());
+      return f;
     }).compose(v -> {
       Future<Void> f = Future.future();
       postAnotherUser(context).setHandler(f.completer());
@@ -324,6 +363,12 @@ public class RestVerticleIT {
      System.out.println(updateGroupResponse.body +
        "\nStatus - " + updateGroupResponse.code + " at " + System.currentTimeMillis() + " for " + updateGroupURL);
 
+     /**the group ids of the tenant are cached now*/
+     CompletableFuture<Response> cacheGroupCF = new CompletableFuture();
+     send(url+"/"+groupID+"/users", context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(cacheGroupCF));
+     context.assertEquals(cacheGroupCF.get(5, TimeUnit.SECONDS).code, HttpURLConnection.HTTP_OK);
+
      /**delete a group*/
      CompletableFuture<Response> deleteCleanCF = new CompletableFuture();
      String deleteCleanURL = url+"/"+groupID;
@@ -334,6 +379,12 @@ public class RestVerticleIT {
      System.out.println(deleteCleanResponse.body +
        "\nStatus - " + deleteCleanResponse.code + " at " + System.currentTimeMillis() + " for " + deleteCleanURL);
 
+     /**the deleted group is no longer accepted, although it was cached*/
+     CompletableFuture<Response> deletedGroupCF = new CompletableFuture();
+     send(userUrl, context, HttpMethod.POST, createUser(null, "deletedgroupuser", groupID).encode(),
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 400, new HTTPNoBodyResponseHandler(deletedGroupCF));
+     context.assertEquals(deletedGroupCF.get(5, TimeUnit.SECONDS).code, HttpURLConnection.HTTP_BAD_REQUEST);
+
      /**re-add a group*/
      CompletableFuture<Response> addNewGroupCF = new CompletableFuture();
      send(addGroupURL, context, HttpMethod.POST, putRequest,
@@ -373,6 +424,15 @@ public class RestVerticleIT {
      System.out.println(addUserResponse3.body +
        "\nStatus - " + addUserResponse3.code + " at " + System.currentTimeMillis() + " for " + addUserURL);
 
+     /**add the same user name again in a different case*/
+     CompletableFuture<Response> addUserCaseCF = new CompletableFuture();
+     send(addUserURL, context, HttpMethod.POST, createUser(null, "JHandley", groupID).encode(),
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 201,  new HTTPResponseHandler(addUserCaseCF));
+     Response addUserCaseResponse = addUserCaseCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(addUserCaseResponse.code, 422);
+     System.out.println(addUserCaseResponse.body +
+       "\nStatus - " + addUserCaseResponse.code + " at " + System.currentTimeMillis() + " for " + addUserURL);
+
      /**add a user again with non existant patron group*/
      CompletableFuture<Response> addUserCF4 = new CompletableFuture();
      send(addUserURL, context, HttpMethod.POST, createUser(null, "jhandley2nd", "10c19698-313b-46fc-8d4b-2d00c6958f5d").encode(),
@@ -400,6 +460,111 @@ public class RestVerticleIT {
      System.out.println(updateUser2Response.body +
        "\nStatus - " + updateUser2Response.code + " at " + System.currentTimeMillis() + " for " + addUserURL+"/"+userID);
 
+     /**deactivate the user with a patch, the rest of the user is kept*/
+     CompletableFuture<Response> patchCF = new CompletableFuture();
+     JsonObject patch = new JsonObject().put("active", false).putNull("barcode");
+     send(addUserURL+"/"+userID, context, HttpMethod.PATCH, patch.encode(),
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 204, new HTTPNoBodyResponseHandler(patchCF));
+     Response patchResponse = patchCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(patchResponse.code, 204);
+     CompletableFuture<Response> patchedCF = new CompletableFuture();
+     send(addUserURL+"/"+userID, context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(patchedCF));
+     Response patchedResponse = patchedCF.get(5, TimeUnit.SECONDS);
+     System.out.println(patchedResponse.body +
+       "\nStatus - " + patchedResponse.code + " at " + System.currentTimeMillis() + " for " + addUserURL+"/"+userID);
+     context.assertFalse(patchedResponse.body.getBoolean("active"));
+     context.assertEquals(patchedResponse.body.getString("username"), "jhandley2nd");
+     context.assertEquals(patchedResponse.body.getString("patronGroup"), groupID);
+
+     /**updates with a stale version fail, with the current version they succeed*/
+     int version = patchedResponse.body.getInteger("_version");
+     CompletableFuture<Response> staleCF = new CompletableFuture();
+     send(addUserURL+"/"+userID, context, HttpMethod.PUT,
+       createUser(userID, "jhandley2nd", groupID).put("_version", version - 1).encode(),
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 409, new HTTPNoBodyResponseHandler(staleCF));
+     context.assertEquals(staleCF.get(5, TimeUnit.SECONDS).code, 409);
+     CompletableFuture<Response> stalePatchCF = new CompletableFuture();
+     send(addUserURL+"/"+userID, context, HttpMethod.PATCH,
+       new JsonObject().put("active", true).put("_version", version - 1).encode(),
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 409, new HTTPNoBodyResponseHandler(stalePatchCF));
+     context.assertEquals(stalePatchCF.get(5, TimeUnit.SECONDS).code, 409);
+     CompletableFuture<Response> currentCF = new CompletableFuture();
+     send(addUserURL+"/"+userID, context, HttpMethod.PUT,
+       createUser(userID, "jhandley2nd", groupID).put("_version", version)
+         .put("enrollmentDate", "2017-01-02T03:04:05.678+0000")
+         .put("expirationDate", "2020-01-01T00:00:00.000+0000").encode(),
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 204, new HTTPNoBodyResponseHandler(currentCF));
+     context.assertEquals(currentCF.get(5, TimeUnit.SECONDS).code, 204);
+     /**the user read after the patch is cached, the update must have dropped it*/
+     CompletableFuture<Response> updatedCF = new CompletableFuture();
+     send(addUserURL+"/"+userID, context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(updatedCF));
+     Response updatedResponse = updatedCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(updatedResponse.body.getInteger("_version"), version + 1);
+
+     /**the same user as CBOR*/
+     CompletableFuture<HttpClientResponse> cborCF = new CompletableFuture();
+     CompletableFuture<Buffer> cborBodyCF = new CompletableFuture();
+     vertx.createHttpClient().getAbs(addUserURL+"/"+userID, res -> {
+       cborCF.complete(res);
+       res.bodyHandler(cborBodyCF::complete);
+     })
+       .putHeader("x-okapi-tenant", "diku")
+       .putHeader("Accept", "application/json;q=0.5, application/cbor")
+       .end();
+     HttpClientResponse cborResponse = cborCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(cborResponse.statusCode(), HttpURLConnection.HTTP_OK);
+     context.assertTrue(cborResponse.getHeader("Content-Type").startsWith("application/cbor"));
+     context.assertEquals(cborResponse.getHeader("Vary"), "Accept");
+     String cborTag = cborResponse.getHeader("ETag");
+     context.assertNotNull(cborTag);
+     context.assertNotEquals(cborTag, updatedResponse.etag);
+     Map<?, ?> cborUser = new ObjectMapper(new CBORFactory()).readValue(
+       cborBodyCF.get(5, TimeUnit.SECONDS).getBytes(), Map.class);
+     /**the same fields with the same values as the JSON, dates included*/
+     JsonObject cborJson = new JsonObject(Json.encode(cborUser));
+     context.assertEquals(cborJson.fieldNames(), updatedResponse.body.fieldNames());
+     for (String field : updatedResponse.body.fieldNames()) {
+       context.assertEquals(cborJson.getValue(field), updatedResponse.body.getValue(field), field);
+     }
+     context.assertEquals(cborJson.getString("enrollmentDate"), "2017-01-02T03:04:05.678+0000");
+     /**the CBOR tag matches CBOR only*/
+     CompletableFuture<Integer> cborNotModifiedCF = new CompletableFuture();
+     vertx.createHttpClient().getAbs(addUserURL+"/"+userID, res -> cborNotModifiedCF.complete(res.statusCode()))
+       .putHeader("x-okapi-tenant", "diku")
+       .putHeader("Accept", "application/cbor")
+       .putHeader("If-None-Match", cborTag)
+       .end();
+     context.assertEquals(cborNotModifiedCF.get(5, TimeUnit.SECONDS), 304);
+     CompletableFuture<Integer> otherFormatCF = new CompletableFuture();
+     vertx.createHttpClient().getAbs(addUserURL+"/"+userID, res -> otherFormatCF.complete(res.statusCode()))
+       .putHeader("x-okapi-tenant", "diku")
+       .putHeader("Accept", "application/json")
+       .putHeader("If-None-Match", cborTag)
+       .end();
+     context.assertEquals(otherFormatCF.get(5, TimeUnit.SECONDS), HttpURLConnection.HTTP_OK);
+
+     /**patches with an unknown field, an unknown group and of an unknown user*/
+     CompletableFuture<Response> badPatchCF = new CompletableFuture();
+     send(addUserURL+"/"+userID, context, HttpMethod.PATCH, new JsonObject().put("nickname", "jo").encode(),
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 400, new HTTPNoBodyResponseHandler(badPatchCF));
+     context.assertEquals(badPatchCF.get(5, TimeUnit.SECONDS).code, 400);
+     CompletableFuture<Response> badGroupPatchCF = new CompletableFuture();
+     send(addUserURL+"/"+userID, context, HttpMethod.PATCH,
+       new JsonObject().put("patronGroup", "30c19698-313b-46fc-8d4b-2d00c6958f5d").encode(),
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 400, new HTTPNoBodyResponseHandler(badGroupPatchCF));
+     context.assertEquals(badGroupPatchCF.get(5, TimeUnit.SECONDS).code, 400);
+     CompletableFuture<Response> noLastNamePatchCF = new CompletableFuture();
+     send(addUserURL+"/"+userID, context, HttpMethod.PATCH,
+       new JsonObject().put("personal", new JsonObject().putNull("lastName")).encode(),
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 400, new HTTPNoBodyResponseHandler(noLastNamePatchCF));
+     context.assertEquals(noLastNamePatchCF.get(5, TimeUnit.SECONDS).code, 400);
+     CompletableFuture<Response> unknownPatchCF = new CompletableFuture();
+     send(addUserURL+"/"+UUID.randomUUID(), context, HttpMethod.PATCH, patch.encode(),
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 404, new HTTPNoBodyResponseHandler(unknownPatchCF));
+     context.assertEquals(unknownPatchCF.get(5, TimeUnit.SECONDS).code, 404);
+
      /**get all users belonging to a specific group*/
      CompletableFuture<Response> getUsersInGroupCF = new CompletableFuture();
      String getUsersInGroupURL = userUrl+"?query=patronGroup=="+groupID;
@@ -424,6 +589,15 @@ public class RestVerticleIT {
          + getAllGroupURL);
      context.assertTrue(isSizeMatch(getAllGroupResponse, 1));
 
+     /**the groups have not changed, a conditional get is not modified*/
+     context.assertNotNull(getAllGroupResponse.etag);
+     CompletableFuture<Response> notModifiedCF = new CompletableFuture();
+     send(getAllGroupURL, context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 304, new HTTPNoBodyResponseHandler(notModifiedCF), getAllGroupResponse.etag);
+     Response notModifiedResponse = notModifiedCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(notModifiedResponse.code, HttpURLConnection.HTTP_NOT_MODIFIED);
+     context.assertEquals(notModifiedResponse.etag, getAllGroupResponse.etag);
+
      /**try to get via cql*/
      CompletableFuture<Response> cqlCF = new CompletableFuture();
      String cqlURL = url+"?query=group==librarianPUT";
@@ -436,6 +610,105 @@ public class RestVerticleIT {
        "\nStatus - " + cqlResponse.code + " at " + System.currentTimeMillis() + " for " + cqlURL);
      context.assertTrue(isSizeMatch(cqlResponse, 1));
 
+     /**export the users one at a time*/
+     CompletableFuture<Response> exportCF = new CompletableFuture();
+     String exportURL = userUrl+"/export?limit=1";
+     send(exportURL, context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPTextResponseHandler(exportCF));
+     Response exportResponse = exportCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(exportResponse.code, HttpURLConnection.HTTP_OK);
+     String[] exported = exportResponse.text.split("\n");
+     context.assertEquals(exported.length, 1);
+     String lastId = new JsonObject(exported[0]).getString("id");
+     CompletableFuture<Response> exportNextCF = new CompletableFuture();
+     send(exportURL+"&after="+lastId, context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPTextResponseHandler(exportNextCF));
+     Response exportNextResponse = exportNextCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(exportNextResponse.code, HttpURLConnection.HTTP_OK);
+     context.assertNotEquals(new JsonObject(exportNextResponse.text.trim()).getString("id"), lastId);
+     System.out.println(exportNextResponse.text +
+       "\nStatus - " + exportNextResponse.code + " at " + System.currentTimeMillis() + " for " + exportURL);
+     /**larger parts must be paged with after*/
+     CompletableFuture<Response> exportTooLargeCF = new CompletableFuture();
+     send(userUrl+"/export?limit=1001", context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 400, new HTTPNoBodyResponseHandler(exportTooLargeCF));
+     context.assertEquals(exportTooLargeCF.get(5, TimeUnit.SECONDS).code, 400);
+
+     /**page through the users by username*/
+     CompletableFuture<Response> sortedCF = new CompletableFuture();
+     String sortedURL = userUrl+"?orderBy=username&order=asc&limit=1";
+     send(sortedURL, context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(sortedCF));
+     Response sortedResponse = sortedCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(sortedResponse.code, HttpURLConnection.HTTP_OK);
+     String firstUsername = sortedResponse.body.getJsonArray("users").getJsonObject(0).getString("username");
+     String next = sortedResponse.body.getString("next");
+     context.assertNotNull(next);
+     CompletableFuture<Response> sortedNextCF = new CompletableFuture();
+     send(sortedURL+"&after="+next, context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(sortedNextCF));
+     Response sortedNextResponse = sortedNextCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(sortedNextResponse.code, HttpURLConnection.HTTP_OK);
+     System.out.println(sortedNextResponse.body +
+       "\nStatus - " + sortedNextResponse.code + " at " + System.currentTimeMillis() + " for " + sortedURL);
+     context.assertNotEquals(sortedNextResponse.body.getJsonArray("users").getJsonObject(0).getString("username"),
+       firstUsername);
+
+     /**only the requested fields and the id are returned*/
+     CompletableFuture<Response> fieldsCF = new CompletableFuture();
+     send(getUsersInGroupURL+"&fields=username,personal.lastName", context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(fieldsCF));
+     Response fieldsResponse = fieldsCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(fieldsResponse.code, HttpURLConnection.HTTP_OK);
+     context.assertEquals(fieldsResponse.body.getInteger("total_records"), 1);
+     context.assertEquals(fieldsResponse.body.getJsonArray("users").getJsonObject(0),
+       new JsonObject().put("id", userID).put("username", "jhandley2nd"));
+     CompletableFuture<Response> badFieldsCF = new CompletableFuture();
+     send(userUrl+"?fields=username;1", context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 400, new HTTPNoBodyResponseHandler(badFieldsCF));
+     context.assertEquals(badFieldsCF.get(5, TimeUnit.SECONDS).code, HttpURLConnection.HTTP_BAD_REQUEST);
+
+     /**sortby as a term is a valid query together with orderBy, a sortby clause is not*/
+     CompletableFuture<Response> sortbyTermCF = new CompletableFuture();
+     send(userUrl+"?query=username==sortby&orderBy=username", context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(sortbyTermCF));
+     Response sortbyTermResponse = sortbyTermCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(sortbyTermResponse.code, HttpURLConnection.HTTP_OK);
+     context.assertTrue(isSizeMatch(sortbyTermResponse, 0));
+     CompletableFuture<Response> sortbyClauseCF = new CompletableFuture();
+     send(getUsersInGroupURL+"%20sortby%20username&orderBy=username", context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 400, new HTTPNoBodyResponseHandler(sortbyClauseCF));
+     context.assertEquals(sortbyClauseCF.get(5, TimeUnit.SECONDS).code, HttpURLConnection.HTTP_BAD_REQUEST);
+
+     /**search without a count and with an estimated count*/
+     CompletableFuture<Response> noCountCF = new CompletableFuture();
+     send(getUsersInGroupURL+"&totalRecords=none", context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(noCountCF));
+     Response noCountResponse = noCountCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(noCountResponse.code, HttpURLConnection.HTTP_OK);
+     context.assertEquals(noCountResponse.body.getJsonArray("users").size(), 1);
+     context.assertFalse(noCountResponse.body.containsKey("total_records"));
+     CompletableFuture<Response> estimatedCF = new CompletableFuture();
+     send(getUsersInGroupURL+"&totalRecords=estimated", context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(estimatedCF));
+     Response estimatedResponse = estimatedCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(estimatedResponse.code, HttpURLConnection.HTTP_OK);
+     context.assertTrue(isSizeMatch(estimatedResponse, 1));
+
+     /**the requests so far show up in the metrics*/
+     CompletableFuture<Response> metricsCF = new CompletableFuture();
+     send("http://localhost:"+port+"/metrics", context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPTextResponseHandler(metricsCF));
+     Response metricsResponse = metricsCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(metricsResponse.code, HttpURLConnection.HTTP_OK);
+     context.assertTrue(metricsResponse.text.contains(
+       "mod_users_request_duration_seconds_count{endpoint=\"GET /users\",status=\"200\"}"));
+     context.assertTrue(metricsResponse.text.contains(
+       "mod_users_phase_duration_seconds_bucket{phase=\"db\",endpoint=\"POST /groups\""));
+     context.assertTrue(metricsResponse.text.contains("mod_users_tenant_requests_total{tenant=\"diku\""));
+     context.assertTrue(metricsResponse.text.contains("# TYPE mod_users_bulkhead_rejected_total counter"));
+     context.assertTrue(metricsResponse.text.contains("mod_users_cache_entries{cache=\"users\"}"));
+
      /**delete a group - should fail as there is a user associated with the group*/
      CompletableFuture<Response> delete1CF = new CompletableFuture();
      String delete1URL = url+"/"+groupID;
@@ -462,6 +735,29 @@ public class RestVerticleIT {
        SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(getSpecGroupCF));
      Response getSpecGroupResponse = getSpecGroupCF.get(5, TimeUnit.SECONDS);
      context.assertEquals(getSpecGroupResponse.code, HttpURLConnection.HTTP_OK);
+     /**the users added to the group are counted*/
+     context.assertTrue(getSpecGroupResponse.body.getInteger("memberCount") > 0);
+     /**a tag of another version of the group is not a match*/
+     CompletableFuture<Response> modifiedCF = new CompletableFuture();
+     send(getSpecGroupURL, context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(modifiedCF), "\"0\", W/\"1\"");
+     Response modifiedResponse = modifiedCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(modifiedResponse.code, HttpURLConnection.HTTP_OK);
+     context.assertEquals(modifiedResponse.etag, getSpecGroupResponse.etag);
+
+     /**list the members of the group, one at a time*/
+     CompletableFuture<Response> membersCF = new CompletableFuture();
+     String membersURL = url+"/"+groupID+"/users?limit=1&brief=true";
+     send(membersURL, context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(membersCF));
+     Response membersResponse = membersCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(membersResponse.code, HttpURLConnection.HTTP_OK);
+     System.out.println(membersResponse.body +
+       "\nStatus - " + membersResponse.code + " at " + System.currentTimeMillis() + " for " + membersURL);
+     context.assertEquals(membersResponse.body.getJsonArray("users").size(), 1);
+     context.assertFalse(membersResponse.body.getJsonArray("users").getJsonObject(0).containsKey("active"));
+     context.assertEquals(membersResponse.body.getInteger("total_records"),
+       getSpecGroupResponse.body.getInteger("memberCount"));
      System.out.println(getSpecGroupResponse.body +
        "\nStatus - " + getSpecGroupResponse.code + " at " + System.currentTimeMillis() + " for " + getSpecGroupURL);
      context.assertTrue("librarianPUT".equals(getSpecGroupResponse.body.getString("group")));
@@ -486,6 +782,178 @@ public class RestVerticleIT {
      System.out.println(deleteResponse.body +
        "\nStatus - " + deleteResponse.code + " at " + System.currentTimeMillis() + " for " + delete);
 
+     /**create users in a batch, the third one repeats the first username*/
+     String batchURL = userUrl + "/batch";
+     JsonObject batch = new JsonObject()
+       .put("users", new JsonArray()
+         .add(createUser(null, "batchuser1", null))
+         .add(createUser(null, "batchuser2", null))
+         .add(createUser(null, "BatchUser1", null)))
+       .put("total_records", 3);
+     CompletableFuture<Response> batchCF = new CompletableFuture();
+     send(batchURL, context, HttpMethod.POST, batch.encode(),
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(batchCF));
+     Response batchResponse = batchCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(batchResponse.code, HttpURLConnection.HTTP_OK);
+     System.out.println(batchResponse.body +
+       "\nStatus - " + batchResponse.code + " at " + System.currentTimeMillis() + " for " + batchURL);
+     context.assertEquals(batchResponse.body.getInteger("created"), 2);
+     context.assertEquals(batchResponse.body.getInteger("failed"), 1);
+     context.assertEquals(batchResponse.body.getJsonArray("results").getJsonObject(2).getString("status"), "failed");
+
+     /**a patch can not give a user without personal data a personal object without lastName*/
+     String batchUserURL = userUrl + "/" + batch.getJsonArray("users").getJsonObject(0).getString("id");
+     for(JsonObject personal : new JsonObject[] { new JsonObject(), new JsonObject().put("firstName", "Jo") }) {
+       CompletableFuture<Response> personalPatchCF = new CompletableFuture();
+       send(batchUserURL, context, HttpMethod.PATCH, new JsonObject().put("personal", personal).encode(),
+         SUPPORTED_CONTENT_TYPE_JSON_DEF, 400, new HTTPNoBodyResponseHandler(personalPatchCF));
+       context.assertEquals(personalPatchCF.get(5, TimeUnit.SECONDS).code, 400);
+     }
+
+     /**the same users again, all of them exist already*/
+     CompletableFuture<Response> batchAgainCF = new CompletableFuture();
+     send(batchURL, context, HttpMethod.POST, batch.encode(),
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(batchAgainCF));
+     Response batchAgainResponse = batchAgainCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(batchAgainResponse.code, HttpURLConnection.HTTP_OK);
+     context.assertEquals(batchAgainResponse.body.getInteger("created"), 0);
+     context.assertEquals(batchAgainResponse.body.getInteger("failed"), 3);
+
+     /**with a replica that is down, reads fail unless they ask for strong consistency*/
+     ReadReplica.configure(new JsonObject().put("host", "localhost").put("port", NetworkUtils.nextFreePort())
+       .put("username", "nobody").put("password", "nobody").put("database", "nowhere"));
+     try {
+       CompletableFuture<Response> strongCF = new CompletableFuture();
+       send(addUserURL+"/"+userID, context, HttpMethod.GET, null,
+         SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(strongCF), null, ReadReplica.STRONG);
+       context.assertEquals(strongCF.get(5, TimeUnit.SECONDS).code, HttpURLConnection.HTTP_OK);
+       /**the strong read has cached the user, reading it again does not need the replica*/
+       CompletableFuture<Response> cachedCF = new CompletableFuture();
+       send(addUserURL+"/"+userID, context, HttpMethod.GET, null,
+         SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(cachedCF));
+       context.assertEquals(cachedCF.get(5, TimeUnit.SECONDS).code, HttpURLConnection.HTTP_OK);
+       CompletableFuture<Response> replicaCF = new CompletableFuture();
+       send(url, context, HttpMethod.GET, null,
+         SUPPORTED_CONTENT_TYPE_JSON_DEF, 500, new HTTPNoBodyResponseHandler(replicaCF));
+       context.assertEquals(replicaCF.get(5, TimeUnit.SECONDS).code, HttpURLConnection.HTTP_INTERNAL_ERROR);
+     } finally {
+       ReadReplica.configure(null);
+     }
+
+     /**look up users by id, results are in request order and unknown ids are marked*/
+     String unknownId = UUID.randomUUID().toString();
+     JsonObject lookup = new JsonObject().put("ids", new JsonArray().add(userID).add(unknownId).add(userID));
+     CompletableFuture<Response> lookupCF = new CompletableFuture();
+     send(userUrl+"/lookup", context, HttpMethod.POST, lookup.encode(),
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(lookupCF));
+     Response lookupResponse = lookupCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(lookupResponse.code, HttpURLConnection.HTTP_OK);
+     System.out.println(lookupResponse.body +
+       "\nStatus - " + lookupResponse.code + " at " + System.currentTimeMillis() + " for " + userUrl+"/lookup");
+     JsonArray lookupResults = lookupResponse.body.getJsonArray("results");
+     context.assertEquals(lookupResults.size(), 3);
+     context.assertEquals(lookupResults.getJsonObject(0).getJsonObject("user").getString("id"), userID);
+     context.assertEquals(lookupResults.getJsonObject(1).getString("id"), unknownId);
+     context.assertFalse(lookupResults.getJsonObject(1).getBoolean("found"));
+     context.assertTrue(lookupResults.getJsonObject(2).getBoolean("found"));
+     context.assertEquals(lookupResponse.body.getInteger("found"), 2);
+     context.assertEquals(lookupResponse.body.getInteger("notFound"), 1);
+
+     /**type-ahead search by the start of a username and by a part of it*/
+     CompletableFuture<Response> prefixSearchCF = new CompletableFuture();
+     send(userUrl+"/search?q=JHand", context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(prefixSearchCF));
+     JsonArray prefixMatches = prefixSearchCF.get(5, TimeUnit.SECONDS).body.getJsonArray("users");
+     context.assertEquals(prefixMatches.getJsonObject(0).getString("username"), "jhandley2nd");
+     context.assertFalse(prefixMatches.getJsonObject(0).containsKey("lastName"));
+     CompletableFuture<Response> containsSearchCF = new CompletableFuture();
+     send(userUrl+"/search?q=ley2&limit=5", context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(containsSearchCF));
+     JsonArray containsMatches = containsSearchCF.get(5, TimeUnit.SECONDS).body.getJsonArray("users");
+     context.assertEquals(containsMatches.size(), 1);
+     context.assertEquals(containsMatches.getJsonObject(0).getString("id"), userID);
+     CompletableFuture<Response> wildcardSearchCF = new CompletableFuture();
+     send(userUrl+"/search?q=j%25", context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(wildcardSearchCF));
+     context.assertEquals(wildcardSearchCF.get(5, TimeUnit.SECONDS).body.getJsonArray("users").size(), 0);
+
+     /**the change feed has the users, a deleted user becomes a tombstone after the last position read*/
+     CompletableFuture<Response> changesCF = new CompletableFuture();
+     send(userUrl+"/changes", context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(changesCF));
+     Response changesResponse = changesCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(changesResponse.code, HttpURLConnection.HTTP_OK);
+     context.assertTrue(changesResponse.body.getJsonArray("changes").stream()
+       .anyMatch(change -> userID.equals(((JsonObject) change).getString("id"))
+         && "jhandley2nd".equals(((JsonObject) change).getJsonObject("user").getString("username"))));
+     String since = changesResponse.body.getString("next");
+     String tombstoneId = UUID.randomUUID().toString();
+     CompletableFuture<Response> tombstoneUserCF = new CompletableFuture();
+     send(addUserURL, context, HttpMethod.POST, createUser(tombstoneId, "tombstone", groupID).encode(),
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 201, new HTTPResponseHandler(tombstoneUserCF));
+     context.assertEquals(tombstoneUserCF.get(5, TimeUnit.SECONDS).code, HttpURLConnection.HTTP_CREATED);
+     CompletableFuture<Response> deleteTombstoneCF = new CompletableFuture();
+     send(addUserURL+"/"+tombstoneId, context, HttpMethod.DELETE, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 204, new HTTPNoBodyResponseHandler(deleteTombstoneCF));
+     context.assertEquals(deleteTombstoneCF.get(5, TimeUnit.SECONDS).code, 204);
+     CompletableFuture<Response> newChangesCF = new CompletableFuture();
+     send(userUrl+"/changes?since="+since, context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(newChangesCF));
+     JsonArray newChanges = newChangesCF.get(5, TimeUnit.SECONDS).body.getJsonArray("changes");
+     context.assertEquals(newChanges.size(), 1);
+     context.assertEquals(newChanges.getJsonObject(0).getString("id"), tombstoneId);
+     context.assertTrue(newChanges.getJsonObject(0).getBoolean("deleted"));
+     context.assertFalse(newChanges.getJsonObject(0).containsKey("user"));
+
+     /**bulk delete the batch users: a dry run counts them, a limit stops the delete early*/
+     String bulkDeleteURL = userUrl+"?query=username%3Dbatchuser*";
+     CompletableFuture<Response> dryRunCF = new CompletableFuture();
+     send(bulkDeleteURL+"&dryRun=true", context, HttpMethod.DELETE, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(dryRunCF));
+     Response dryRunResponse = dryRunCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(dryRunResponse.code, HttpURLConnection.HTTP_OK);
+     context.assertEquals(dryRunResponse.body.getInteger("matched"), 2);
+     context.assertEquals(dryRunResponse.body.getInteger("deleted"), 0);
+     CompletableFuture<Response> limitedDeleteCF = new CompletableFuture();
+     send(bulkDeleteURL+"&limit=1", context, HttpMethod.DELETE, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(limitedDeleteCF));
+     Response limitedDeleteResponse = limitedDeleteCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(limitedDeleteResponse.body.getInteger("deleted"), 1);
+     context.assertFalse(limitedDeleteResponse.body.getBoolean("complete"));
+     CompletableFuture<Response> bulkDeleteCF = new CompletableFuture();
+     send(bulkDeleteURL, context, HttpMethod.DELETE, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(bulkDeleteCF));
+     Response bulkDeleteResponse = bulkDeleteCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(bulkDeleteResponse.body.getInteger("deleted"), 1);
+     context.assertTrue(bulkDeleteResponse.body.getBoolean("complete"));
+
+     /**move the members to a new group, the old group can be deleted then*/
+     CompletableFuture<Response> addTargetGroupCF = new CompletableFuture();
+     send(url, context, HttpMethod.POST, postRequest,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 201, new HTTPResponseHandler(addTargetGroupCF));
+     String targetGroupID = addTargetGroupCF.get(5, TimeUnit.SECONDS).body.getString("id");
+     String moveURL = url+"/"+groupID+"/users/move?to=";
+     CompletableFuture<Response> moveUnknownCF = new CompletableFuture();
+     send(moveURL+"4bb563d9-3f9d-4e1e-8d1d-04e75666d68f", context, HttpMethod.POST, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 400, new HTTPNoBodyResponseHandler(moveUnknownCF));
+     context.assertEquals(moveUnknownCF.get(5, TimeUnit.SECONDS).code, HttpURLConnection.HTTP_BAD_REQUEST);
+     CompletableFuture<Response> moveCF = new CompletableFuture();
+     send(moveURL+targetGroupID, context, HttpMethod.POST, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(moveCF));
+     Response moveResponse = moveCF.get(5, TimeUnit.SECONDS);
+     context.assertEquals(moveResponse.code, HttpURLConnection.HTTP_OK);
+     System.out.println(moveResponse.body +
+       "\nStatus - " + moveResponse.code + " at " + System.currentTimeMillis() + " for " + moveURL);
+     context.assertEquals(moveResponse.body.getInteger("moved"), getSpecGroupResponse.body.getInteger("memberCount"));
+     CompletableFuture<Response> movedUserCF = new CompletableFuture();
+     send(addUserURL+"/"+userID, context, HttpMethod.GET, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 200, new HTTPResponseHandler(movedUserCF));
+     context.assertEquals(movedUserCF.get(5, TimeUnit.SECONDS).body.getString("patronGroup"), targetGroupID);
+     CompletableFuture<Response> deleteEmptiedCF = new CompletableFuture();
+     send(url+"/"+groupID, context, HttpMethod.DELETE, null,
+       SUPPORTED_CONTENT_TYPE_JSON_DEF, 204, new HTTPNoBodyResponseHandler(deleteEmptiedCF));
+     context.assertEquals(deleteEmptiedCF.get(5, TimeUnit.SECONDS).code, HttpURLConnection.HTTP_NO_CONTENT);
+
 
   } catch (Exception e) {
     e.printStackTrace();
@@ -495,6 +963,17 @@ public class RestVerticleIT {
 
  private void send(String url, TestContext context, HttpMethod method, String content,
      String contentType, int errorCode, Handler<HttpClientResponse> handler) {
+   send(url, context, method, content, contentType, errorCode, handler, null);
+ }
+
+ private void send(String url, TestContext context, HttpMethod method, String content,
+     String contentType, int errorCode, Handler<HttpClientResponse> handler, String ifNoneMatch) {
+   send(url, context, method, content, contentType, errorCode, handler, ifNoneMatch, null);
+ }
+
+ private void send(String url, TestContext context, HttpMethod method, String content,
+     String contentType, int errorCode, Handler<HttpClientResponse> handler, String ifNoneMatch,
+     String readConsistency) {
    HttpClient client = vertx.createHttpClient();
    HttpClientRequest request;
    if(content == null){
@@ -511,6 +990,9 @@ public class RestVerticleIT {
    else if (method == HttpMethod.GET) {
      request = client.getAbs(url);
    }
+   else if (method == HttpMethod.PATCH) {
+     request = client.requestAbs(HttpMethod.PATCH, url);
+   }
    else {
      request = client.putAbs(url);
    }
@@ -522,6 +1004,12 @@ public class RestVerticleIT {
    request.putHeader("x-okapi-tenant", "diku");
    request.putHeader("Accept", "application/json,text/plain");
    request.putHeader("Content-type", contentType);
+   if(ifNoneMatch != null){
+     request.putHeader("If-None-Match", ifNoneMatch);
+   }
+   if(readConsistency != null){
+     request.putHeader(ReadReplica.CONSISTENCY_HEADER, readConsistency);
+   }
    request.end(buffer);
  }
 
@@ -536,12 +1024,30 @@ public class RestVerticleIT {
      hcr.bodyHandler( bh -> {
        Response r = new Response();
        r.code = hcr.statusCode();
+       r.etag = hcr.getHeader("ETag");
        r.body = bh.toJsonObject();
        event.complete(r);
      });
    }
  }
 
+ class HTTPTextResponseHandler implements Handler<HttpClientResponse> {
+
+   CompletableFuture<Response> event;
+   public HTTPTextResponseHandler(CompletableFuture<Response> cf){
+     event = cf;
+   }
+   @Override
+   public void handle(HttpClientResponse hcr) {
+     hcr.bodyHandler( bh -> {
+       Response r = new Response();
+       r.code = hcr.statusCode();
+       r.text = bh.toString();
+       event.complete(r);
+     });
+   }
+ }
+
  class HTTPNoBodyResponseHandler implements Handler<HttpClientResponse> {
 
    CompletableFuture<Response> event;
@@ -552,13 +1058,16 @@ public class RestVerticleIT {
    public void handle(HttpClientResponse hcr) {
      Response r = new Response();
      r.code = hcr.statusCode();
+     r.etag = hcr.getHeader("ETag");
      event.complete(r);
    }
  }
 
  class Response {
    int code;
+   String etag;
    JsonObject body;
+   String text;
  }
 
  private boolean isSizeMatch(Response r, int size){
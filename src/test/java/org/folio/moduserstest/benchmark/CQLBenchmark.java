@@ -0,0 +1,66 @@
+package org.folio.moduserstest.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.folio.rest.persist.Criteria.Limit;
+import org.folio.rest.persist.Criteria.Offset;
+import org.folio.rest.persist.cql.CQLWrapper;
+import org.folio.rest.utils.CachingCQL2PgJSON;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.z3950.zing.cql.cql2pgjson.CQL2PgJSON;
+
+/**
+ * CQL to SQL translation of the query shapes the UI sends most, uncached as before
+ * and through the translation cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CQLBenchmark {
+
+  @Param({
+    "barcode==1234567890",
+    "username==\"jhandey\"",
+    "active=true",
+    "(username=\"jhan*\" or personal.lastName=\"Handey*\") and active=true sortby personal.lastName"
+  })
+  public String query;
+
+  private CQL2PgJSON cached;
+  private int n;
+
+  @Setup
+  public void setup() throws Exception {
+    cached = CachingCQL2PgJSON.getInstance("users.jsonb");
+  }
+
+  @Benchmark
+  public String translate() throws Exception {
+    return new CQL2PgJSON("users.jsonb").cql2pgJson(query);
+  }
+
+  @Benchmark
+  public String wrapper() throws Exception {
+    return new CQLWrapper(new CQL2PgJSON("users.jsonb"), query)
+        .setLimit(new Limit(10)).setOffset(new Offset(0)).toString();
+  }
+
+  /** same shape, a different term each time */
+  @Benchmark
+  public String translateCached() throws Exception {
+    return cached.cql2pgJson(query.replace("1234567890", Integer.toString(1000000000 + (n++ & 1023))));
+  }
+}
@@ -0,0 +1,194 @@
+package org.folio.moduserstest.benchmark;
+
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.folio.rest.RestVerticle;
+import org.folio.rest.client.TenantClient;
+import org.folio.rest.persist.PostgresClient;
+import org.folio.rest.tools.utils.NetworkUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * End to end request handling: the module deployed in this JVM against the database
+ * of postgres-runner, as started by the benchmark profile, with a tenant of
+ * {@link #users} users. The allocations reported by -prof gc include the HTTP client.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HandlerBenchmark {
+
+  private static final String TENANT = "benchmark";
+
+  @Param({"10000"})
+  public int users;
+
+  private Vertx vertx;
+  private HttpClient client;
+  private int port;
+  private String groupId;
+  private final List<String> ids = new ArrayList<>();
+  private final List<String> barcodes = new ArrayList<>();
+  private int n;
+
+  @Setup
+  public void setup() throws Exception {
+    vertx = Vertx.vertx();
+    port = NetworkUtils.nextFreePort();
+    client = vertx.createHttpClient();
+
+    CompletableFuture<Void> dropped = new CompletableFuture<>();
+    PostgresClient.getInstance(vertx).runSQLFile(
+        "drop schema if exists " + TENANT + "_mod_users cascade;\n"
+        + "drop role if exists " + TENANT + "_mod_users;\n", true, reply -> complete(dropped, reply.cause()));
+    dropped.get(60, TimeUnit.SECONDS);
+
+    CompletableFuture<Void> deployed = new CompletableFuture<>();
+    DeploymentOptions options = new DeploymentOptions().setConfig(new JsonObject().put("http.port", port));
+    vertx.deployVerticle(RestVerticle.class.getName(), options, reply -> {
+      if (reply.failed()) {
+        deployed.completeExceptionally(reply.cause());
+        return;
+      }
+      try {
+        new TenantClient("localhost", port, TENANT).post(null, res -> deployed.complete(null));
+      } catch (Exception e) {
+        deployed.completeExceptionally(e);
+      }
+    });
+    deployed.get(60, TimeUnit.SECONDS);
+
+    groupId = request(HttpMethod.POST, "/groups",
+        new JsonObject().put("group", "benchmark").put("desc", "benchmark group").encode(), 201)
+        .toJsonObject().getString("id");
+
+    for (int i = 0; i < users; i += 500) {
+      JsonArray batch = new JsonArray();
+      for (int j = i; j < Math.min(i + 500, users); j++) {
+        batch.add(user(j));
+      }
+      request(HttpMethod.POST, "/users/batch", new JsonObject().put("users", batch).encode(), 200);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    client.close();
+    CompletableFuture<Void> closed = new CompletableFuture<>();
+    vertx.close(reply -> complete(closed, reply.cause()));
+    closed.get(60, TimeUnit.SECONDS);
+  }
+
+  private JsonObject user(int i) {
+    String id = UUID.randomUUID().toString();
+    String barcode = Integer.toString(1000000000 + i);
+    ids.add(id);
+    barcodes.add(barcode);
+    return new JsonObject()
+        .put("id", id)
+        .put("username", "user" + i)
+        .put("barcode", barcode)
+        .put("active", i % 10 != 0)
+        .put("patronGroup", groupId)
+        .put("personal", new JsonObject()
+            .put("lastName", "Lastname" + i)
+            .put("firstName", "Firstname" + i)
+            .put("email", "user" + i + "@example.org"));
+  }
+
+  private static void complete(CompletableFuture<Void> future, Throwable cause) {
+    if (cause == null) {
+      future.complete(null);
+    } else {
+      future.completeExceptionally(cause);
+    }
+  }
+
+  private static String encode(String query) throws Exception {
+    return URLEncoder.encode(query, "UTF-8");
+  }
+
+  private Buffer request(HttpMethod method, String uri, String body, int expectedStatus) throws Exception {
+    CompletableFuture<Buffer> result = new CompletableFuture<>();
+    HttpClientRequest request = client.request(method, port, "localhost", uri, res ->
+      res.bodyHandler(buf -> {
+        if (res.statusCode() == expectedStatus) {
+          result.complete(buf);
+        } else {
+          result.completeExceptionally(new IllegalStateException(
+              method + " " + uri + ": " + res.statusCode() + " " + buf));
+        }
+      }));
+    request.exceptionHandler(result::completeExceptionally);
+    request.putHeader("X-Okapi-Tenant", TENANT)
+        .putHeader("content-type", "application/json")
+        .putHeader("accept", "application/json,text/plain");
+    if (body == null) {
+      request.end();
+    } else {
+      request.end(body);
+    }
+    return result.get(10, TimeUnit.SECONDS);
+  }
+
+  private int next() {
+    n = (n + 1) % ids.size();
+    return n;
+  }
+
+  @Benchmark
+  public Buffer getUserById() throws Exception {
+    return request(HttpMethod.GET, "/users/" + ids.get(next()), null, 200);
+  }
+
+  @Benchmark
+  public Buffer searchByBarcode() throws Exception {
+    return request(HttpMethod.GET, "/users?query=" + encode("barcode==" + barcodes.get(next())), null, 200);
+  }
+
+  @Benchmark
+  public Buffer searchActiveSortedByUsername() throws Exception {
+    return request(HttpMethod.GET, "/users?orderBy=username&limit=10&query=" + encode("active=true"), null, 200);
+  }
+
+  @Benchmark
+  public Buffer getGroups() throws Exception {
+    return request(HttpMethod.GET, "/groups", null, 200);
+  }
+
+  @Benchmark
+  public Buffer postAndDeleteUser() throws Exception {
+    String id = UUID.randomUUID().toString();
+    JsonObject user = new JsonObject().put("id", id).put("username", id).put("patronGroup", groupId);
+    request(HttpMethod.POST, "/users", user.encode(), 201);
+    return request(HttpMethod.DELETE, "/users/" + id, null, 204);
+  }
+}
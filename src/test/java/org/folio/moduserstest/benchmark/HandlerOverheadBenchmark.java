@@ -0,0 +1,193 @@
+package org.folio.moduserstest.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.Response;
+
+import org.folio.rest.RestVerticle;
+import org.folio.rest.client.TenantClient;
+import org.folio.rest.impl.UserGroupAPI;
+import org.folio.rest.impl.UsersAPI;
+import org.folio.rest.persist.PostgresClient;
+import org.folio.rest.tools.utils.NetworkUtils;
+import org.folio.rest.utils.ReadReplica;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * The request handlers without HTTP: the methods RMB calls are called directly on an
+ * event loop context, with a new API instance per call as RMB creates them, against the
+ * database of postgres-runner as started by the benchmark profile. cachedUser is the
+ * fixed overhead of a handler (bulkhead, metrics, cache) without a database round trip;
+ * the others add the round trips of the composed futures. Use -prof gc for the
+ * allocations per request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HandlerOverheadBenchmark {
+
+  private static final String TENANT = "benchmark";
+
+  private Vertx vertx;
+  private Context context;
+  private HttpClient client;
+  private int port;
+  private String groupId;
+  private String userId;
+  private final Map<String, String> headers = new HashMap<>();
+  private final Map<String, String> strongHeaders = new HashMap<>();
+
+  /** a call of a handler method */
+  @FunctionalInterface
+  private interface Call {
+    void run(Handler<AsyncResult<Response>> handler) throws Exception;
+  }
+
+  @Setup
+  public void setup() throws Exception {
+    vertx = Vertx.vertx();
+    context = vertx.getOrCreateContext();
+    port = NetworkUtils.nextFreePort();
+    client = vertx.createHttpClient();
+
+    CompletableFuture<Void> dropped = new CompletableFuture<>();
+    PostgresClient.getInstance(vertx).runSQLFile(
+        "drop schema if exists " + TENANT + "_mod_users cascade;\n"
+        + "drop role if exists " + TENANT + "_mod_users;\n", true, reply -> complete(dropped, reply.cause()));
+    dropped.get(60, TimeUnit.SECONDS);
+
+    CompletableFuture<Void> deployed = new CompletableFuture<>();
+    DeploymentOptions options = new DeploymentOptions().setConfig(new JsonObject().put("http.port", port));
+    vertx.deployVerticle(RestVerticle.class.getName(), options, reply -> {
+      if (reply.failed()) {
+        deployed.completeExceptionally(reply.cause());
+        return;
+      }
+      try {
+        new TenantClient("localhost", port, TENANT).post(null, res -> deployed.complete(null));
+      } catch (Exception e) {
+        deployed.completeExceptionally(e);
+      }
+    });
+    deployed.get(60, TimeUnit.SECONDS);
+
+    groupId = request(HttpMethod.POST, "/groups",
+        new JsonObject().put("group", "benchmark").put("desc", "benchmark group").encode(), 201)
+        .toJsonObject().getString("id");
+    userId = UUID.randomUUID().toString();
+    request(HttpMethod.POST, "/users", new JsonObject().put("id", userId).put("username", "benchmark")
+        .put("patronGroup", groupId).put("personal", new JsonObject().put("lastName", "Benchmark")).encode(), 201);
+
+    headers.put(RestVerticle.OKAPI_HEADER_TENANT, TENANT);
+    strongHeaders.putAll(headers);
+    strongHeaders.put(ReadReplica.CONSISTENCY_HEADER, ReadReplica.STRONG);
+    /* fills the user cache for cachedUser */
+    cachedUser();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    client.close();
+    CompletableFuture<Void> closed = new CompletableFuture<>();
+    vertx.close(reply -> complete(closed, reply.cause()));
+    closed.get(60, TimeUnit.SECONDS);
+  }
+
+  private static void complete(CompletableFuture<Void> future, Throwable cause) {
+    if (cause == null) {
+      future.complete(null);
+    } else {
+      future.completeExceptionally(cause);
+    }
+  }
+
+  private Buffer request(HttpMethod method, String uri, String body, int expectedStatus) throws Exception {
+    CompletableFuture<Buffer> result = new CompletableFuture<>();
+    HttpClientRequest request = client.request(method, port, "localhost", uri, res ->
+      res.bodyHandler(buf -> {
+        if (res.statusCode() == expectedStatus) {
+          result.complete(buf);
+        } else {
+          result.completeExceptionally(new IllegalStateException(
+              method + " " + uri + ": " + res.statusCode() + " " + buf));
+        }
+      }));
+    request.exceptionHandler(result::completeExceptionally);
+    request.putHeader("X-Okapi-Tenant", TENANT)
+        .putHeader("content-type", "application/json")
+        .putHeader("accept", "application/json,text/plain");
+    request.end(body);
+    return result.get(10, TimeUnit.SECONDS);
+  }
+
+  /** run call on the context, as RMB does, and wait for its response */
+  private Response call(Call call) throws Exception {
+    CompletableFuture<Response> result = new CompletableFuture<>();
+    context.runOnContext(v -> {
+      try {
+        call.run(reply -> {
+          if (reply.failed()) {
+            result.completeExceptionally(reply.cause());
+          } else if (reply.result().getStatus() != 200) {
+            result.completeExceptionally(new IllegalStateException("Status " + reply.result().getStatus()));
+          } else {
+            result.complete(reply.result());
+          }
+        });
+      } catch (Exception e) {
+        result.completeExceptionally(e);
+      }
+    });
+    return result.get(10, TimeUnit.SECONDS);
+  }
+
+  @Benchmark
+  public Response cachedUser() throws Exception {
+    return call(handler -> new UsersAPI().getUsersByUserId(userId, null, null, null, headers, handler, context));
+  }
+
+  @Benchmark
+  public Response user() throws Exception {
+    return call(handler -> new UsersAPI().getUsersByUserId(userId, null, null, null, strongHeaders, handler,
+        context));
+  }
+
+  @Benchmark
+  public Response group() throws Exception {
+    return call(handler -> new UserGroupAPI().getGroupsByGroupId(groupId, null, null, headers, handler, context));
+  }
+
+  @Benchmark
+  public Response groupMembers() throws Exception {
+    return call(handler -> new UserGroupAPI().getGroupsByGroupIdUsers(groupId, null, 10, false, null, headers,
+        handler, context));
+  }
+}
@@ -0,0 +1,119 @@
+package org.folio.moduserstest.benchmark;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.folio.rest.jaxrs.model.Personal;
+import org.folio.rest.jaxrs.model.User;
+import org.folio.rest.jaxrs.model.UserdataCollection;
+import org.folio.rest.jaxrs.model.Usergroup;
+import org.folio.rest.jaxrs.model.Usergroups;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Jackson (de)serialization of the user and group payloads at the sizes of a single
+ * record, a result page and a large export page.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JsonBenchmark {
+
+  /** users per collection */
+  @Param({"10", "100", "1000"})
+  public int size;
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private User user;
+  private String userJson;
+  private UserdataCollection users;
+  private String usersJson;
+  private Usergroups groups;
+  private String groupsJson;
+
+  static User user(int i) {
+    return new User()
+        .withId(UUID.randomUUID().toString())
+        .withUsername("user" + i)
+        .withBarcode(Integer.toString(1000000000 + i))
+        .withActive(i % 10 != 0)
+        .withType("patron")
+        .withPatronGroup(UUID.randomUUID().toString())
+        .withOpenDate(new Date())
+        .withExpirationDate(new Date())
+        .withPersonal(new Personal()
+            .withLastName("Lastname" + i)
+            .withFirstName("Firstname" + i)
+            .withEmail("user" + i + "@example.org")
+            .withPhone("+1 555 0100 " + i));
+  }
+
+  @Setup
+  public void setup() throws Exception {
+    user = user(0);
+    userJson = mapper.writeValueAsString(user);
+
+    List<User> list = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      list.add(user(i));
+    }
+    users = new UserdataCollection().withUsers(list).withTotalRecords(size);
+    usersJson = mapper.writeValueAsString(users);
+
+    List<Usergroup> groupList = new ArrayList<>();
+    for (int i = 0; i < Math.min(size, 100); i++) {
+      groupList.add(new Usergroup().withId(UUID.randomUUID().toString())
+          .withGroup("group" + i).withDesc("patron group " + i));
+    }
+    groups = new Usergroups().withUsergroups(groupList).withTotalRecords(groupList.size());
+    groupsJson = mapper.writeValueAsString(groups);
+  }
+
+  @Benchmark
+  public String writeUser() throws Exception {
+    return mapper.writeValueAsString(user);
+  }
+
+  @Benchmark
+  public User readUser() throws Exception {
+    return mapper.readValue(userJson, User.class);
+  }
+
+  @Benchmark
+  public String writeUserdataCollection() throws Exception {
+    return mapper.writeValueAsString(users);
+  }
+
+  @Benchmark
+  public UserdataCollection readUserdataCollection() throws Exception {
+    return mapper.readValue(usersJson, UserdataCollection.class);
+  }
+
+  @Benchmark
+  public String writeUsergroups() throws Exception {
+    return mapper.writeValueAsString(groups);
+  }
+
+  @Benchmark
+  public Usergroups readUsergroups() throws Exception {
+    return mapper.readValue(groupsJson, Usergroups.class);
+  }
+}
@@ -0,0 +1,82 @@
+package org.folio.moduserstest.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.folio.rest.jaxrs.model.User;
+import org.folio.rest.jaxrs.model.UserdataCollection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Encoding and decoding of a GET /users page in the response formats of
+ * {@link org.folio.rest.utils.ResponseFormat}. The payload size of each format is
+ * printed by the setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ResponseFormatBenchmark {
+
+  @Param({"json", "cbor", "smile"})
+  public String format;
+
+  /** users per page */
+  @Param({"1000"})
+  public int size;
+
+  private ObjectMapper mapper;
+  private UserdataCollection users;
+  private byte[] encoded;
+
+  @Setup
+  public void setup() throws Exception {
+    JsonFactory factory;
+    switch (format) {
+      case "cbor":
+        factory = new CBORFactory();
+        break;
+      case "smile":
+        factory = new SmileFactory();
+        break;
+      default:
+        factory = new JsonFactory();
+    }
+    mapper = new ObjectMapper(factory);
+    List<User> list = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      list.add(JsonBenchmark.user(i));
+    }
+    users = new UserdataCollection().withUsers(list).withTotalRecords(size);
+    encoded = mapper.writeValueAsBytes(users);
+    System.out.println(format + ": " + size + " users in " + encoded.length + " bytes");
+  }
+
+  @Benchmark
+  public byte[] encode() throws Exception {
+    return mapper.writeValueAsBytes(users);
+  }
+
+  @Benchmark
+  public UserdataCollection decode() throws Exception {
+    return mapper.readValue(encoded, UserdataCollection.class);
+  }
+}
@@ -0,0 +1,43 @@
+package org.folio.moduserstest.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.folio.rest.jaxrs.model.Errors;
+import org.folio.rest.utils.ValidationHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Building the 422 body of a rejected user, and serializing it as the response does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ValidationHelperBenchmark {
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  @Benchmark
+  public Errors createValidationErrorMessage() {
+    return ValidationHelper.createValidationErrorMessage("username", "jhandey",
+        "User with this username already exists");
+  }
+
+  @Benchmark
+  public String createAndWrite() throws Exception {
+    return mapper.writeValueAsString(ValidationHelper.createValidationErrorMessage("username", "jhandey",
+        "User with this username already exists"));
+  }
+}
@@ -0,0 +1,186 @@
+package org.folio.rest.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.z3950.zing.cql.cql2pgjson.CQL2PgJSON;
+import org.z3950.zing.cql.cql2pgjson.QueryValidationException;
+
+/**
+ * Every translation of the cache must be the one of a plain CQL2PgJSON, whether it comes
+ * from a shape, from the query cache or from a miss.
+ */
+public class CachingCQL2PgJSONTest {
+
+  private static final String FIELD = "users.jsonb";
+  private static final String INVALID = "QueryValidationException";
+
+  private CQL2PgJSON plain;
+  private CachingCQL2PgJSON cached;
+
+  @Before
+  public void setUp() throws Exception {
+    plain = new CQL2PgJSON(FIELD);
+    cached = new CachingCQL2PgJSON(FIELD);
+  }
+
+  /** the translation of cql2pgJson, or INVALID */
+  private static String translate(CQL2PgJSON cql2pgJson, String cql) {
+    try {
+      return cql2pgJson.cql2pgJson(cql);
+    } catch (QueryValidationException e) {
+      return INVALID;
+    }
+  }
+
+  private void assertTranslation(String cql) {
+    assertEquals(cql, translate(plain, cql), translate(cached, cql));
+  }
+
+  /** first and second, each with a new cache, in both orders */
+  private void assertPair(String first, String second) throws Exception {
+    for (String[] pair : new String[][] {{first, second}, {second, first}}) {
+      cached = new CachingCQL2PgJSON(FIELD);
+      assertTranslation(pair[0]);
+      assertTranslation(pair[1]);
+      assertTranslation(pair[0]);
+    }
+  }
+
+  private void assertCounts(long hits, long misses) {
+    assertEquals("hits", hits, cached.getHitCount());
+    assertEquals("misses", misses, cached.getMissCount());
+  }
+
+  @Test
+  public void miss() {
+    assertTranslation("username==jhandley");
+    assertCounts(0, 1);
+  }
+
+  @Test
+  public void hit() {
+    assertTranslation("username==jhandley");
+    assertTranslation("username==abc");
+    assertTranslation("username==jhandley");
+    assertCounts(2, 1);
+  }
+
+  @Test
+  public void quoted() {
+    assertTranslation("username==\"jhandley\"");
+    assertTranslation("username==\"abc\"");
+    assertCounts(1, 1);
+    /* same terms, other shape */
+    assertTranslation("username==abc");
+    assertCounts(1, 2);
+  }
+
+  @Test
+  public void numeric() {
+    assertTranslation("barcode==1234");
+    assertTranslation("barcode==5678");
+    assertCounts(1, 1);
+    /* a leading zero is another signature */
+    assertTranslation("barcode==0123");
+    assertTranslation("barcode==0456");
+    assertCounts(2, 2);
+    /* so are letters */
+    assertTranslation("barcode==abc");
+    assertCounts(2, 3);
+  }
+
+  @Test
+  public void hyphenated() {
+    assertTranslation("personal.lastName==Smith-Jones");
+    assertTranslation("personal.lastName==Miller-Brown");
+    assertTranslation("personal.lastName=Smith-Jones");
+    assertTranslation("personal.lastName=Miller-Brown");
+  }
+
+  @Test
+  public void uuid() {
+    assertTranslation("id==c4d3a6f2-1b2e-4c8a-9f3e-6a7b8c9d0e1f");
+    assertTranslation("id==d5e4b7a3-2c3f-4d9b-8a4f-7b8c9d0e1f2a");
+    assertCounts(1, 1);
+    assertTranslation("patronGroup==c4d3a6f2-1b2e-4c8a-9f3e-6a7b8c9d0e1f and active==true");
+    assertTranslation("patronGroup==d5e4b7a3-2c3f-4d9b-8a4f-7b8c9d0e1f2a and active==false");
+  }
+
+  @Test
+  public void reservedWords() {
+    assertTranslation("username==jhandley");
+    long hits = cached.getHitCount();
+    for (String keyword : new String[] {"and", "or", "not", "prox", "sortby", "AND", "SortBy"}) {
+      assertTranslation("username==" + keyword);
+      assertTranslation("username==\"" + keyword + "\"");
+      assertTranslation("username==" + keyword + " and active==true");
+    }
+    /* none of them were served from the shape of username==jhandley */
+    assertEquals(hits, cached.getHitCount());
+  }
+
+  @Test
+  public void unusableShapes() {
+    /* whether these shapes verify depends on the translation, the SQL must be right either way */
+    assertTranslation("personal.lastName=Handey");
+    assertTranslation("personal.lastName=Smith");
+    assertTranslation("personal.lastName=HANDEY");
+    assertTranslation("username=jhandley*");
+    assertTranslation("username=jhandley*");
+    assertTranslation("username=abc*");
+    assertTranslation("username==\"a b\"");
+    assertTranslation("username==\"c d\"");
+    assertTranslation("username==\"QxZ\"");
+    assertTranslation("barcode==90817");
+  }
+
+  @Test
+  public void booleans() throws Exception {
+    assertPair("active==foo", "active==true");
+    assertPair("active==true", "active==false");
+    assertPair("active==TRUE", "active==true");
+    assertPair("active==\"true\"", "active==\"foo\"");
+    assertPair("username==abc and active==true", "username==abc and active==false");
+    /* the boolean stays in the shape, the other terms are still substituted */
+    cached = new CachingCQL2PgJSON(FIELD);
+    assertTranslation("username==abc and active==true");
+    assertTranslation("username==xyz and active==true");
+    assertCounts(1, 1);
+  }
+
+  @Test
+  public void numbers() throws Exception {
+    assertPair("barcode==123", "barcode==abc");
+    assertPair("barcode==123", "barcode==0123");
+    assertPair("barcode==123", "barcode==1e5");
+    assertPair("barcode==abc", "barcode==1e5");
+    assertPair("barcode==abc-5", "barcode==1e-5");
+    assertPair("barcode==abc", "barcode==2d");
+    assertPair("barcode==abc", "barcode==NaN");
+    assertPair("barcode<123", "barcode<abc");
+  }
+
+  @Test
+  public void wildcards() throws Exception {
+    assertPair("barcode==123", "barcode==12*");
+    assertPair("barcode==123", "barcode==1?3");
+    assertPair("username==abc", "username==*");
+    assertPair("username=abc", "username=ab*");
+    assertPair("username==\"abc\"", "username==\"ab*\"");
+  }
+
+  @Test
+  public void empty() throws Exception {
+    assertPair("username==\"abc\"", "username==\"\"");
+    assertPair("username=\"abc\"", "username=\"\"");
+  }
+
+  @Test
+  public void invalid() {
+    assertTranslation("username==");
+    assertTranslation("username==jhandley and");
+    assertTranslation("(username==jhandley");
+  }
+}
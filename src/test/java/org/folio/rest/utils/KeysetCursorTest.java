@@ -0,0 +1,65 @@
+package org.folio.rest.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.junit.Test;
+
+/**
+ * A token that decode accepts must give a cursor that can build its condition; anything
+ * else must be an IllegalArgumentException, which the API answers with 400.
+ */
+public class KeysetCursorTest {
+
+  private static final String ID = "c4d3a6f2-1b2e-4c8a-9f3e-6a7b8c9d0e1f";
+
+  private static String token(String json) {
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void assertInvalid(String token) {
+    try {
+      KeysetCursor.decode(token);
+      fail("decoded " + token);
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void roundTrip() {
+    KeysetCursor cursor = KeysetCursor.decode(new KeysetCursor("username", true, "jhandley", ID).encode());
+    assertTrue(cursor.matches("username", true));
+    assertFalse(cursor.matches("username", false));
+    assertEquals("(u, i) < ('jhandley', '" + ID + "')", cursor.condition("u", "i"));
+  }
+
+  @Test
+  public void idWithoutValue() {
+    KeysetCursor cursor = KeysetCursor.decode(token("[\"" + SqlUtil.ID_FIELD + "\",false,null,\"" + ID + "\"]"));
+    assertEquals("i > '" + ID + "'", cursor.condition("i", "i"));
+  }
+
+  @Test
+  public void nulls() {
+    assertInvalid(token("[null,false,null,null]"));
+    assertInvalid(token("[null,false,\"jhandley\",\"" + ID + "\"]"));
+    assertInvalid(token("[\"username\",null,\"jhandley\",\"" + ID + "\"]"));
+    assertInvalid(token("[\"username\",false,\"jhandley\",null]"));
+    assertInvalid(token("[\"username\",false,null,\"" + ID + "\"]"));
+    assertInvalid(token("[\"id\",false,null,null]"));
+  }
+
+  @Test
+  public void malformed() {
+    assertInvalid("not base64!");
+    assertInvalid(token("{}"));
+    assertInvalid(token("[]"));
+    assertInvalid(token("[1,2,3,4]"));
+  }
+}